@@ -0,0 +1,184 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static rdt.RDT.segments;
+
+/** Sends messages for RDT.sendAsync() without blocking the caller. Messages are queued, and cut into segments
+ * whenever the congestion and receive windows allow: first by the caller, then again on whichever thread moves
+ * the window, usually the one processing acks. A message's future completes once a cumulative ack covers its
+ * last segment
+ *
+ * @author Chris Harris
+ */
+class AsyncSender {
+    private RDT rdt;
+    private RDTBuffer sndBuf;
+    private UdpTransport transport;
+    private InetSocketAddress dst;
+    private int connId;
+    private ConcurrentLinkedQueue<Message> unsent = new ConcurrentLinkedQueue<>(); // Not yet cut into segments
+    private ArrayDeque<Message> unacked = new ArrayDeque<>(); // Fully sent, in sequence order, guarded by this
+    private AtomicInteger wip = new AtomicInteger(); // Requests to drain, so only one thread sends at a time
+    private TimingWheel.Timeout probe; // Zero window probe timer, guarded by this
+    private long probeDelay = 0;       // Guarded by this
+
+    AsyncSender(RDT rdt_, RDTBuffer sndBuf_, UdpTransport t, InetSocketAddress dst_, int connId_) {
+        rdt = rdt_;
+        sndBuf = sndBuf_;
+        transport = t;
+        dst = dst_;
+        connId = connId_;
+    }
+
+    /** Queues a message and sends as much of it as the windows allow right away
+     *
+     * @param data array holding the message, which must not be changed until the future completes
+     * @param off index of the first byte
+     * @param len number of bytes
+     * @return future completed with len once the whole message has been acked
+     */
+    CompletableFuture<Integer> send(byte[] data, int off, int len) {
+        Message m = new Message(data, off, len);
+
+        if (len == 0) {
+            m.future.complete(0);
+            return m.future;
+        }
+
+        unsent.add(m);
+        drain();
+
+        return m.future;
+    }
+
+    /** Called after base, the congestion window or the receive window has moved: completes the futures of the
+     * messages that are now acked, and sends more of the queue
+     *
+     */
+    void windowMoved() {
+        completeAcked();
+        drain();
+    }
+
+    /** Completes, in order, the future of every message whose last segment is below base
+     *
+     */
+    private void completeAcked() {
+        int base = sndBuf.base;
+
+        while (true) {
+            Message m;
+
+            synchronized (this) {
+                m = unacked.peek();
+
+                if (m == null || m.lastSeqNum >= base) {
+                    return;
+                }
+
+                unacked.poll();
+            }
+
+            m.future.complete(m.len);
+        }
+    }
+
+    /** Sends queued data until the queue is empty or the windows close. A thread that finds another already
+     * sending only leaves it a note to go round once more, so the caller never waits
+     *
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+
+        do {
+            sendReady();
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void sendReady() {
+        Message m;
+
+        while ((m = unsent.peek()) != null) {
+            while (m.pos < m.end) {
+                if (!sndBuf.windowOpen()) {
+                    if (sndBuf.zeroWindow()) {
+                        armProbe(); // Nothing in flight, so no ack will reopen the window by itself
+                    }
+
+                    return;
+                }
+
+                int length = Math.min(sndBuf.mss, m.end - m.pos);
+                RDTSegment seg = segments.acquire();
+
+                System.arraycopy(m.data, m.pos, seg.buffer(length), 0, length);
+                seg.length = length;
+                m.pos += length;
+
+                m.lastSeqNum = rdt.transmit(seg);
+            }
+
+            unsent.poll();
+
+            synchronized (this) {
+                unacked.add(m);
+                probeDelay = 0;
+            }
+
+            completeAcked(); // The ack for the last segment may have beaten us here
+        }
+    }
+
+    /** Starts the persist timer, unless it is already running. Each probe doubles the delay until the next
+     *
+     */
+    private synchronized void armProbe() {
+        if (probe == null) {
+            probeDelay = (probeDelay == 0) ? sndBuf.rtt.rto() : Math.min(RTOEstimator.MAX_RTO, probeDelay * 2);
+            probe = sndBuf.timer.schedule(this::probe, probeDelay);
+        }
+    }
+
+    private void probe() {
+        synchronized (this) {
+            probe = null;
+        }
+
+        if (sndBuf.zeroWindow() && !unsent.isEmpty()) {
+            sndBuf.sendProbe(transport, dst, connId);
+        }
+
+        drain(); // Re-arms the timer if the window is still closed
+    }
+
+    /** A message passed to sendAsync()
+     *
+     */
+    private static class Message {
+        final byte[] data;
+        final int len;
+        final int end;
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        int pos;         // Next byte to be cut into a segment
+        int lastSeqNum;  // Sequence number of the message's last segment, once sent
+
+        Message(byte[] data_, int off, int len_) {
+            data = data_;
+            len = len_;
+            pos = off;
+            end = off + len_;
+        }
+    }
+} // end AsyncSender class
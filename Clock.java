@@ -0,0 +1,34 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+/** Source of time for the transport's timers, RTT samples and event log. Connections normally read the system
+ * clock, but under a Simulator they read its virtual clock instead, which only moves when the simulation moves it
+ *
+ * @author Chris Harris
+ */
+interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /** Returns the current value of the clock, only meaningful relative to other readings of the same clock
+     *
+     * @return time in nanoseconds
+     */
+    long nanoTime();
+
+    /** Returns the time events are stamped with in the event log
+     *
+     * @return time in msec
+     */
+    long currentTimeMillis();
+} // end Clock interface
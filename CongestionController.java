@@ -0,0 +1,63 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import static rdt.RDT.*;
+
+/** Decides how many segments a connection may have in flight. The sender consults window() before putting
+ * a new segment on the network, and the receiver thread reports acks, losses and timeouts so that the window
+ * can grow while the path has capacity and shrink when it is congested. Windows are counted in segments
+ *
+ * @author Chris Harris
+ */
+interface CongestionController {
+    int INITIAL_WINDOW = 4;  // Segments allowed in flight before the first ack
+    int MIN_SSTHRESH = 2;
+
+    /** Returns the congestion window
+     *
+     * @return number of segments that may be in flight
+     */
+    int window();
+
+    /** Checks whether the window is still growing exponentially, i.e. it has not yet reached ssthresh
+     *
+     * @return a boolean value
+     */
+    boolean slowStart();
+
+    /** Called when an ack covers segments that had not been acknowledged before
+     *
+     * @param acked number of newly acknowledged segments
+     * @param cumulativeAck highest sequence number acknowledged without gaps
+     */
+    void onAck(int acked, int cumulativeAck);
+
+    /** Called when a loss is inferred from the ack stream, before the retransmission timer fires
+     *
+     * @param highestSent highest sequence number sent when the loss was detected
+     */
+    void onLoss(int highestSent);
+
+    /** Called when a retransmission timer expires
+     *
+     */
+    void onTimeout();
+
+    /** Creates a controller for one of the CC_* algorithms defined in RDT
+     *
+     * @param algorithm CC_RENO, CC_NEWRENO or CC_CUBIC
+     * @return a new controller
+     */
+    static CongestionController create(int algorithm) {
+        switch (algorithm) {
+            case CC_RENO:
+                return new RenoController();
+            case CC_CUBIC:
+                return new CubicController();
+            case CC_NEWRENO:
+            default:
+                return new NewRenoController();
+        }
+    }
+} // end CongestionController interface
@@ -0,0 +1,146 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/** Counters, gauges and latency histograms for one connection. Counters are LongAdders, bumped on the sending,
+ * receiving and timer threads without contending with each other, and gauges are read from the connection's
+ * buffers only when the metrics are scraped. Exported through JMX and the Prometheus endpoint by Metrics
+ *
+ * @author Chris Harris
+ */
+class ConnectionMetrics implements ConnectionMetricsMBean {
+    final InetSocketAddress peer;
+    final int connId;
+    private RDTBuffer sndBuf, rcvBuf;
+
+    final LongAdder segmentsSent = new LongAdder();     // Data segments sent for the first time
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder retransmissions = new LongAdder();  // Data segments sent again, for any reason
+    final LongAdder timeouts = new LongAdder();         // Retransmission timer expiries
+    final LongAdder timerRestarts = new LongAdder();    // Go Back N timer (re)starts
+    final LongAdder fastRetransmits = new LongAdder();  // Segments resent before their timer expired
+    final LongAdder windowProbes = new LongAdder();     // Zero window probes sent
+    final LongAdder lostSegments = new LongAdder();     // Data segments dropped by the emulated network
+    final LongAdder acksSent = new LongAdder();
+    final LongAdder acksReceived = new LongAdder();
+    final LongAdder duplicateAcks = new LongAdder();    // Acks that acknowledged nothing new
+    final LongAdder lostAcks = new LongAdder();         // Acks dropped by the emulated network
+    final LongAdder segmentsReceived = new LongAdder(); // Data segments arriving, duplicates included
+    final LongAdder outOfOrder = new LongAdder();       // Data segments arriving ahead of a gap
+    final LongAdder duplicateSegments = new LongAdder(); // Data segments that had already been received
+    final LongAdder segmentsDelivered = new LongAdder(); // Data segments taken by the application
+    final LongAdder bytesDelivered = new LongAdder();
+    final Histogram rtt = new Histogram();              // RTT samples, as fed to the RTO estimator
+    final Histogram deliveryLatency = new Histogram();  // Arrival of a segment to the application taking it
+
+    /**
+     *
+     * @param peer_ address of the peer
+     * @param connId_ connection ID
+     * @param sndBuf_ send buffer, read for the sender's gauges
+     * @param rcvBuf_ receive buffer, read for its occupancy, may be null
+     */
+    ConnectionMetrics(InetSocketAddress peer_, int connId_, RDTBuffer sndBuf_, RDTBuffer rcvBuf_) {
+        peer = peer_;
+        connId = connId_;
+        sndBuf = sndBuf_;
+        rcvBuf = rcvBuf_;
+    }
+
+    /** Counts the first transmission of a data segment
+     *
+     * @param seg the segment
+     * @param delivered false if the emulated network dropped it
+     */
+    void sent(RDTSegment seg, boolean delivered) {
+        segmentsSent.increment();
+        bytesSent.add(seg.length);
+
+        if (!delivered) {
+            lostSegments.increment();
+        }
+    }
+
+    /** Counts a retransmission
+     *
+     * @param delivered false if the emulated network dropped it
+     */
+    void resent(boolean delivered) {
+        retransmissions.increment();
+
+        if (!delivered) {
+            lostSegments.increment();
+        }
+    }
+
+    /** Counts an ack sent
+     *
+     * @param delivered false if the emulated network dropped it
+     */
+    void ackSent(boolean delivered) {
+        acksSent.increment();
+
+        if (!delivered) {
+            lostAcks.increment();
+        }
+    }
+
+    /** Counts a segment taken by the application, and how long it waited in the receive buffer
+     *
+     * @param seg the segment, with receivedAt set
+     */
+    void delivered(RDTSegment seg) {
+        segmentsDelivered.increment();
+        bytesDelivered.add(seg.length);
+
+        if (seg.receivedAt != 0) {
+            deliveryLatency.record(RDT.clock.nanoTime() - seg.receivedAt);
+        }
+    }
+
+    /** Returns the name the metrics are registered under with JMX
+     *
+     * @return the name, or null if it could not be built
+     */
+    ObjectName objectName() {
+        try {
+            return new ObjectName("rdt:type=Connection,peer=" + ObjectName.quote(String.valueOf(peer)) + ",conn=" + connId);
+        } catch (MalformedObjectNameException e) {
+            System.out.println("ConnectionMetrics objectName(): " + e);
+            return null;
+        }
+    }
+
+    @Override public long getSegmentsSent() { return segmentsSent.sum(); }
+    @Override public long getBytesSent() { return bytesSent.sum(); }
+    @Override public long getRetransmissions() { return retransmissions.sum(); }
+    @Override public long getTimeouts() { return timeouts.sum(); }
+    @Override public long getTimerRestarts() { return timerRestarts.sum(); }
+    @Override public long getFastRetransmits() { return fastRetransmits.sum(); }
+    @Override public long getWindowProbes() { return windowProbes.sum(); }
+    @Override public long getLostSegments() { return lostSegments.sum(); }
+    @Override public long getAcksSent() { return acksSent.sum(); }
+    @Override public long getAcksReceived() { return acksReceived.sum(); }
+    @Override public long getDuplicateAcks() { return duplicateAcks.sum(); }
+    @Override public long getLostAcks() { return lostAcks.sum(); }
+    @Override public long getSegmentsReceived() { return segmentsReceived.sum(); }
+    @Override public long getOutOfOrderSegments() { return outOfOrder.sum(); }
+    @Override public long getDuplicateSegments() { return duplicateSegments.sum(); }
+    @Override public long getSegmentsDelivered() { return segmentsDelivered.sum(); }
+    @Override public long getBytesDelivered() { return bytesDelivered.sum(); }
+    @Override public int getSegmentsInFlight() { return sndBuf.nextSeqNum - sndBuf.base; }
+    @Override public int getCongestionWindow() { return sndBuf.cc.window(); }
+    @Override public int getMaxSegmentSize() { return sndBuf.mss; }
+    @Override public int getReceiveBufferOccupancy() { return (rcvBuf == null) ? 0 : rcvBuf.occupancy(); }
+    @Override public double getSmoothedRttMillis() { return sndBuf.rtt.srtt(); }
+    @Override public long getRtoMillis() { return sndBuf.rtt.rto(); }
+    @Override public double getRttMillisP50() { return rtt.percentile(0.5); }
+    @Override public double getRttMillisP99() { return rtt.percentile(0.99); }
+    @Override public double getDeliveryLatencyMillisP50() { return deliveryLatency.percentile(0.5); }
+    @Override public double getDeliveryLatencyMillisP99() { return deliveryLatency.percentile(0.99); }
+} // end ConnectionMetrics class
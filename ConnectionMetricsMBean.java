@@ -0,0 +1,38 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+/** Management interface of one connection's metrics, registered with the platform MBean server as
+ * rdt:type=Connection,peer=...,conn=... once RDT.exportMetrics() has been called
+ *
+ * @author Chris Harris
+ */
+public interface ConnectionMetricsMBean {
+    long getSegmentsSent();
+    long getBytesSent();
+    long getRetransmissions();
+    long getTimeouts();
+    long getTimerRestarts();
+    long getFastRetransmits();
+    long getWindowProbes();
+    long getLostSegments();
+    long getAcksSent();
+    long getAcksReceived();
+    long getDuplicateAcks();
+    long getLostAcks();
+    long getSegmentsReceived();
+    long getOutOfOrderSegments();
+    long getDuplicateSegments();
+    long getSegmentsDelivered();
+    long getBytesDelivered();
+    int getSegmentsInFlight();
+    int getCongestionWindow();
+    int getMaxSegmentSize();
+    int getReceiveBufferOccupancy();
+    double getSmoothedRttMillis();
+    long getRtoMillis();
+    double getRttMillisP50();
+    double getRttMillisP99();
+    double getDeliveryLatencyMillisP50();
+    double getDeliveryLatencyMillisP99();
+} // end ConnectionMetricsMBean interface
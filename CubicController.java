@@ -0,0 +1,109 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+/** CUBIC congestion control (RFC 8312). After a loss the window grows along a cubic curve centred on the
+ * window size at which the loss happened, so it recovers quickly on high bandwidth-delay paths and probes
+ * carefully near the previous maximum. A Reno-equivalent estimate keeps it TCP-friendly on short paths
+ *
+ * @author Chris Harris
+ */
+class CubicController implements CongestionController {
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh = Integer.MAX_VALUE;
+    private double wMax = 0;       // Window at the last loss
+    private double k = 0;          // Seconds the cubic curve takes to climb back to wMax
+    private double origin = 0;     // Window at which the curve plateaus
+    private double wEst = 0;       // Reno-equivalent window for the TCP-friendly region
+    private long epochStart = 0;   // RDT.clock.nanoTime() at which the current growth epoch began, 0 if none
+    private boolean timedOut = false;
+
+    @Override
+    public synchronized int window() {
+        return Math.max(1, (int) cwnd);
+    }
+
+    @Override
+    public synchronized boolean slowStart() {
+        return cwnd < ssthresh;
+    }
+
+    @Override
+    public synchronized void onAck(int acked, int cumulativeAck) {
+        timedOut = false;
+
+        if (cwnd < ssthresh) {
+            cwnd += acked; // Slow start
+            return;
+        }
+
+        long now = RDT.clock.nanoTime();
+
+        if (epochStart == 0) {
+            epochStart = now;
+
+            if (cwnd < wMax) {
+                k = Math.cbrt((wMax - cwnd) / C);
+                origin = wMax;
+            }
+            else {
+                k = 0;
+                origin = cwnd;
+            }
+
+            wEst = cwnd;
+        }
+
+        double t = (now - epochStart) / 1e9;
+        double target = origin + C * Math.pow(t - k, 3);
+
+        wEst += 3 * (1 - BETA) / (1 + BETA) * acked / cwnd;
+
+        if (target > cwnd) {
+            cwnd += (target - cwnd) / cwnd * acked;
+        }
+        else {
+            cwnd += 0.01 * acked / cwnd; // Plateau near wMax: grow very slowly
+        }
+
+        if (wEst > cwnd) {
+            cwnd = wEst; // TCP-friendly region
+        }
+    }
+
+    @Override
+    public synchronized void onLoss(int highestSent) {
+        reduce();
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public synchronized void onTimeout() {
+        if (!timedOut) {
+            reduce();
+        }
+
+        cwnd = 1;
+        timedOut = true;
+    }
+
+    /** Records the loss point and sets ssthresh to the reduced window
+     *
+     */
+    private void reduce() {
+        epochStart = 0;
+
+        // Fast convergence: release bandwidth sooner when the loss point keeps dropping
+        if (cwnd < wMax) {
+            wMax = cwnd * (1 + BETA) / 2;
+        }
+        else {
+            wMax = cwnd;
+        }
+
+        ssthresh = Math.max(cwnd * BETA, MIN_SSTHRESH);
+    }
+} // end CubicController class
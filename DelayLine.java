@@ -0,0 +1,124 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/** Emulates network latency without blocking the sending thread. Segments are encoded as soon as they are
+ * handed to the delay line, kept in a time-ordered queue, and written to the channel by a single drainer
+ * thread once their departure time has passed. Packets sent through the same transport leave in the order
+ * they were sent, so the emulated link adds jitter but does not reorder segments
+ *
+ * @author Chris Harris
+ */
+class DelayLine {
+    private DelayQueue<Packet> queue = new DelayQueue<>();
+    private ArrayDeque<Packet> free = new ArrayDeque<>(); // Recycled packets, guarded by this
+    private long sequence = 0;                             // Tie-breaker for equal departure times, guarded by this
+
+    DelayLine() {
+        Thread drainer = new Thread(this::drain, "rdt-delay-line");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /** Encodes a segment and queues it for transmission once the given delay has elapsed
+     *
+     * @param seg RDT segment to be sent over the network
+     * @param transport transport used for transmission
+     * @param dst address of the recipient
+     * @param delayNanos emulated network delay in nanoseconds
+     */
+    void send(RDTSegment seg, UdpTransport transport, SocketAddress dst, long delayNanos) {
+        Packet pkt;
+
+        synchronized (this) {
+            pkt = free.poll();
+
+            // Never let a packet leave before one previously sent through the same transport
+            long departure = Math.max(System.nanoTime() + delayNanos, transport.lastDeparture);
+            transport.lastDeparture = departure;
+
+            if (pkt == null) {
+                pkt = new Packet();
+            }
+
+            pkt.departure = departure;
+            pkt.order = sequence++;
+        }
+
+        int size = RDTSegment.HDR_SIZE + seg.length;
+
+        if (pkt.data == null || pkt.data.capacity() < size) {
+            pkt.data = ByteBuffer.allocateDirect(Math.max(size, Packet.MIN_CAPACITY));
+        }
+
+        pkt.data.clear();
+        pkt.data.limit(Utility.makePayload(seg, pkt.data));
+        pkt.transport = transport;
+        pkt.dst = dst;
+
+        queue.put(pkt);
+    }
+
+    /** Waits for packets to become due, and hands them to their transport
+     *
+     */
+    private void drain() {
+        while (true) {
+            Packet pkt;
+
+            try {
+                pkt = queue.take();
+            } catch (InterruptedException e) {
+                System.out.println("DelayLine drain(): " + e);
+                return;
+            }
+
+            try {
+                pkt.transport.send(pkt.data, pkt.dst);
+            } catch (IOException e) {
+                System.out.println("udp_send: " + e);
+            }
+
+            pkt.transport = null;
+            pkt.dst = null;
+
+            synchronized (this) {
+                free.push(pkt);
+            }
+        }
+    }
+
+    /** An encoded datagram waiting for its departure time
+     *
+     */
+    private static class Packet implements Delayed {
+        static final int MIN_CAPACITY = 2048;
+
+        ByteBuffer data;
+        UdpTransport transport;
+        SocketAddress dst;
+        long departure; // System.nanoTime() at which the packet may leave
+        long order;
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(departure - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Packet p = (Packet) other;
+            int cmp = Long.compare(departure - p.departure, 0);
+
+            return (cmp != 0) ? cmp : Long.compare(order, p.order);
+        }
+    }
+} // end DelayLine class
@@ -0,0 +1,21 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+/** Callback receiving a connection's data as soon as it can be delivered in order, instead of the application
+ * calling RDT.receive()
+ *
+ * @author Chris Harris
+ */
+public interface DeliveryHandler {
+
+    /** Called on the thread that processes the connection's segments, once per segment and in sequence order.
+     * The array is recycled when the call returns, so the data must be copied out if it is needed later. The
+     * call should be short, since no further segments of the connection are processed until it returns
+     *
+     * @param data array holding the segment's data
+     * @param off index of the first byte
+     * @param len number of bytes
+     */
+    void deliver(byte[] data, int off, int len);
+} // end DeliveryHandler interface
@@ -0,0 +1,270 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static rdt.RDT.*;
+
+/** Level-gated event log for the send, receive and timer paths. Recording an event checks the level, claims a
+ * slot in a multi-producer ring and writes the event there as four longs, without building strings, allocating
+ * or waiting. A background thread drains the ring in order and passes each event to the configured EventSink.
+ * When the ring is full the event is counted and dropped rather than holding up the protocol. Below the
+ * configured level, recording an event is a single field read
+ *
+ * @author Chris Harris
+ */
+class EventLog {
+    static final int CAPACITY = 8192; // Events queued before new ones are dropped, must be a power of two
+
+    private static final int SLOT = 4; // Longs per event: time, type and a, b and c, d
+    private static final VarHandle CLAIMED;
+    private static final VarHandle CONSUMED;
+    private static final VarHandle DROPPED;
+    private static final VarHandle PUBLISHED = MethodHandles.arrayElementVarHandle(long[].class);
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            CLAIMED = lookup.findVarHandle(EventLog.class, "claimed", long.class);
+            CONSUMED = lookup.findVarHandle(EventLog.class, "consumed", long.class);
+            DROPPED = lookup.findVarHandle(EventLog.class, "dropped", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final EventLog log = new EventLog();
+    static volatile EventSink sink = new ConsoleSink(); // Receives the drained events, see RDT.setLogSink()
+
+    private final long[] events = new long[CAPACITY * SLOT];
+    private final long[] published = new long[CAPACITY]; // Sequence number last written to each slot
+    private final int mask = CAPACITY - 1;
+    private long claimed;  // Sequence numbers handed to producers, accessed through CLAIMED
+    private long consumed; // Sequence numbers drained, accessed through CONSUMED
+    private long dropped;  // Events dropped on a full ring, accessed through DROPPED
+    private long reported; // Dropped events already reported to the sink, guarded by this
+
+    private EventLog() {
+        for (int i = 0; i < CAPACITY; i++) {
+            published[i] = -1;
+        }
+
+        Thread drainer = new Thread(this::run, "rdt-event-log");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        // Flush whatever is still queued when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "rdt-event-log-flush"));
+    }
+
+    /** Records an event needed to follow the protocol's progress: losses, timeouts and recovery
+     *
+     */
+    static void info(int type, int a, int b, int c, int d) {
+        if (logLevel >= LOG_INFO) {
+            log.record(type, a, b, c, d);
+        }
+    }
+
+    /** Records a per-packet event
+     *
+     */
+    static void debug(int type, int a, int b, int c, int d) {
+        if (logLevel >= LOG_DEBUG) {
+            log.record(type, a, b, c, d);
+        }
+    }
+
+    /** Claims the next slot and writes an event into it, or counts it as dropped if the ring is full
+     *
+     */
+    private void record(int type, int a, int b, int c, int d) {
+        long seq;
+
+        do {
+            seq = (long) CLAIMED.getVolatile(this);
+
+            if (seq - (long) CONSUMED.getAcquire(this) >= CAPACITY) {
+                DROPPED.getAndAdd(this, 1L);
+                return;
+            }
+        } while (!CLAIMED.compareAndSet(this, seq, seq + 1));
+
+        int idx = (int) (seq & mask);
+        int at = idx * SLOT;
+
+        events[at] = RDT.clock.currentTimeMillis();
+        events[at + 1] = ((long) type << 32) | (a & 0xffffffffL);
+        events[at + 2] = ((long) b << 32) | (c & 0xffffffffL);
+        events[at + 3] = d;
+
+        PUBLISHED.setRelease(published, idx, seq);
+    }
+
+    /** Drains the ring, then sleeps briefly once it is empty. Producers never wake the drainer, so that recording
+     * an event stays free of system calls
+     *
+     */
+    private void run() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /** Passes every published event to the sink, in order
+     *
+     * @return number of events drained
+     */
+    private synchronized int drain() {
+        EventSink s = sink;
+        long next = consumed;
+        int n = 0;
+
+        while ((long) PUBLISHED.getAcquire(published, (int) (next & mask)) == next) {
+            int at = (int) (next & mask) * SLOT;
+            long time = events[at];
+            long typeA = events[at + 1];
+            long bc = events[at + 2];
+            int d = (int) events[at + 3];
+
+            CONSUMED.setRelease(this, ++next); // The slot has been read, so producers may reuse it
+            n++;
+
+            try {
+                s.event(time, (int) (typeA >>> 32), (int) typeA, (int) (bc >>> 32), (int) bc, d);
+            } catch (RuntimeException e) {
+                System.out.println("EventLog drain(): " + e);
+            }
+        }
+
+        long lost = (long) DROPPED.getVolatile(this);
+
+        if (lost != reported) {
+            int count = (int) (lost - reported);
+            reported = lost;
+            n++;
+
+            try {
+                s.event(RDT.clock.currentTimeMillis(), EventSink.DROPPED, count, 0, 0, 0);
+            } catch (RuntimeException e) {
+                System.out.println("EventLog drain(): " + e);
+            }
+        }
+
+        if (n > 0) {
+            try {
+                s.flush();
+            } catch (RuntimeException e) {
+                System.out.println("EventLog drain(): " + e);
+            }
+        }
+
+        return n;
+    }
+
+    /** Prints events to stdout in color, one line each, writing each batch with a single call
+     *
+     */
+    static class ConsoleSink implements EventSink {
+        private StringBuilder out = new StringBuilder();
+
+        @Override
+        public void event(long time, int type, int a, int b, int c, int d) {
+            out.append(time).append(':');
+
+            switch (type) {
+                case SEND:
+                case RESEND:
+                    out.append(' ').append(ANSI_GREEN).append(type == SEND ? "SEND: " : "RESEND: ").append(ANSI_RESET)
+                            .append(ANSI_GREEN).append("SeqNum=").append(a).append(ANSI_RESET).append(" AckNum=").append(b)
+                            .append(" Delay=").append(c).append(" Checksum=").append(d);
+                    break;
+                case SEND_ACK:
+                    out.append(' ').append(ANSI_GREEN).append("SEND: ").append(ANSI_RESET).append("SeqNum=").append(a)
+                            .append(ANSI_GREEN).append(" AckNum=").append(b).append(ANSI_RESET).append(" Delay=").append(c);
+                    break;
+                case SEND_FIN:
+                    out.append(' ').append(ANSI_PURPLE).append("SEND FIN:").append(ANSI_RESET).append(" Delay=").append(c);
+                    break;
+                case LOST_SEGMENT:
+                    out.append(ANSI_RED).append(" LOST SEGMENT:").append(ANSI_RESET).append(" SeqNum=").append(a);
+                    break;
+                case LOST_ACK:
+                    out.append(ANSI_RED).append(" LOST ACK:").append(ANSI_RESET).append(" AckNum=").append(b);
+                    break;
+                case RECEIVED_ACK:
+                    out.append(ANSI_YELLOW).append(" RECEIVED ACK: ").append(ANSI_RESET).append("Cumulative=").append(a)
+                            .append(" SackBlocks=").append(b);
+                    break;
+                case RECEIVED_SEGMENT:
+                    out.append(ANSI_YELLOW).append(" RECEIVED SEGMENT: ").append(ANSI_RESET).append("SeqNum=").append(a);
+                    break;
+                case OUT_OF_ORDER:
+                    out.append(ANSI_RED).append(" RECEIVED OUT OF ORDER PACKET: ").append(ANSI_RESET).append("SeqNum=").append(a);
+                    break;
+                case DELIVERED:
+                    out.append(ANSI_PURPLE).append(" SEGMENT DELIVERED TO UPPER LAYER: ").append(ANSI_RESET)
+                            .append("SeqNum=").append(a).append(" Checksum=").append(b);
+                    break;
+                case TIMEOUT:
+                    out.append(ANSI_CYAN).append(" TIMEOUT FOR SEGMENT: ").append(ANSI_RESET).append("SegNum=").append(a);
+                    break;
+                case START_TIMER:
+                    out.append(ANSI_CYAN).append(" START TIMER: ").append(ANSI_RESET).append("base=").append(a)
+                            .append(" nextSeqNum=").append(b);
+                    break;
+                case RESTART_TIMER:
+                    out.append(ANSI_CYAN).append(" RESTART TIMER: ").append(ANSI_RESET)
+                            .append("Resending all un-acked packets starting from base=").append(a);
+                    break;
+                case TIMER_CANCELLED:
+                    out.append(ANSI_CYAN).append(" TIMER CANCELLED").append(ANSI_RESET);
+                    break;
+                case SACK_HOLE:
+                    out.append(ANSI_RED).append(" SACK HOLE: ").append(ANSI_RESET).append("SegNum=").append(a);
+                    break;
+                case RECEIVED_FIN:
+                    out.append(ANSI_PURPLE).append(" RECEIVED FIN").append(ANSI_RESET);
+                    break;
+                case FAST_RETRANSMIT:
+                    out.append(ANSI_RED).append(" FAST RETRANSMIT: ").append(ANSI_RESET)
+                            .append("Resending all un-acked packets starting from base=").append(a)
+                            .append(" after ").append(b).append(" duplicate acks");
+                    break;
+                case MTU_PROBE:
+                    out.append(ANSI_CYAN).append(" MTU PROBE: ").append(ANSI_RESET).append("Size=").append(a)
+                            .append(" Id=").append(b).append(" Delay=").append(c);
+                    break;
+                case MTU_UPDATE:
+                    out.append(ANSI_CYAN).append(" MTU UPDATE: ").append(ANSI_RESET).append("MSS=").append(a)
+                            .append(" after a ").append(b).append(" byte probe got through");
+                    break;
+                case MTU_BLACK_HOLE:
+                    out.append(ANSI_RED).append(" MTU BLACK HOLE: ").append(ANSI_RESET).append("MSS=").append(a)
+                            .append(" after ").append(b).append(" byte probes stopped getting through");
+                    break;
+                case DROPPED:
+                    out.append(ANSI_RED).append(" LOG DROPPED: ").append(ANSI_RESET).append(a).append(" events");
+                    break;
+                default:
+                    out.append(" EVENT ").append(type).append(' ').append(a).append(' ').append(b).append(' ')
+                            .append(c).append(' ').append(d);
+            }
+
+            out.append('\n');
+        }
+
+        @Override
+        public void flush() {
+            System.out.print(out);
+            System.out.flush();
+            out.setLength(0);
+        }
+    }
+} // end EventLog class
@@ -0,0 +1,94 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** Runs the receiving side of many connections and listeners on a single thread. One Selector watches all of
+ * their channels, and each pass reads every readable channel, lets the Receivers process the segments, flushes
+ * the acks of the whole batch, and then fires the retransmission and probe timers that have fallen due on the
+ * loop's own timing wheel. The select timeout is the nearer of the earliest delayed ack and the earliest timer
+ * deadline, so an idle loop sleeps until there is work. Runs on a thread from RDT's executor
+ *
+ * @author Chris Harris
+ */
+class EventLoop implements Runnable {
+    final TimingWheel timer; // Retransmission timers of the loop's connections, driven by this thread
+
+    private Selector selector;
+    private ReceiverGroup group; // Shared by every ReceiverThread on the loop
+    private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Registrations from other threads
+
+    /**
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    EventLoop() throws IOException {
+        selector = Selector.open();
+        timer = new TimingWheel(selector::wakeup);
+        group = new ReceiverGroup(selector::wakeup);
+    }
+
+    /** Adds a channel to the loop. The registration itself happens on the loop's thread, since a selector blocked
+     * in select() would otherwise hold it up
+     *
+     * @param t transport whose channel is watched
+     * @param r reads, decodes and routes the channel's datagrams
+     */
+    void register(UdpTransport t, ReceiverThread r) {
+        r.group = group;
+        r.startShards();
+
+        tasks.add(() -> t.register(selector, r));
+        selector.wakeup();
+    }
+
+    /** Runs the loop
+     *
+     */
+    @Override
+    public void run() {
+        long timeout = 0;
+
+        while (true) {
+            try {
+                selector.select(timeout);
+            } catch (IOException e) {
+                System.out.println("EventLoop run(): " + e);
+            }
+
+            Runnable task;
+
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            for (SelectionKey key : selector.selectedKeys()) {
+                ReceiverThread r = (ReceiverThread) key.attachment();
+
+                try {
+                    r.drain();
+                } catch (IOException e) {
+                    System.out.println("EventLoop run(): " + e); // Closed under us, the key is cancelled already
+                }
+
+                r.publish();
+            }
+
+            selector.selectedKeys().clear();
+
+            long ackWait = group.flushAcks();
+            long timerWait = timer.expire();
+
+            if (ackWait == 0 || timerWait == 0) {
+                timeout = Math.max(ackWait, timerWait);
+            }
+            else {
+                timeout = Math.min(ackWait, timerWait);
+            }
+        }
+    }
+} // end EventLoop class
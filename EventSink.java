@@ -0,0 +1,50 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+/** Destination for the protocol's event log. Events are recorded as a type and four int arguments, queued without
+ * formatting or allocation, and handed to the sink in order by a single background thread. The colored console
+ * output is one such sink, see RDT.setLogSink()
+ *
+ * @author Chris Harris
+ */
+public interface EventSink {
+    // Event types, with the meaning of their arguments (a, b, c, d)
+    int SEND = 1;              // Data segment sent: seqNum, ackNum, delay in msec, checksum
+    int RESEND = 2;            // Data segment resent: seqNum, ackNum, delay in msec, checksum
+    int SEND_ACK = 3;          // Ack sent: seqNum, ackNum, delay in msec
+    int SEND_FIN = 4;          // FIN sent: seqNum, ackNum, delay in msec
+    int LOST_SEGMENT = 5;      // Segment dropped by the emulated network: seqNum
+    int LOST_ACK = 6;          // Ack dropped by the emulated network: seqNum, ackNum
+    int RECEIVED_ACK = 7;      // Ack received: ackNum, number of SACK blocks
+    int RECEIVED_SEGMENT = 8;  // Data segment received: seqNum
+    int OUT_OF_ORDER = 9;      // Data segment dropped by Go Back N: seqNum
+    int DELIVERED = 10;        // Segment taken by the application: seqNum, checksum
+    int TIMEOUT = 11;          // Selective Repeat segment timed out: seqNum
+    int START_TIMER = 12;      // Go Back N timer started: base, nextSeqNum
+    int RESTART_TIMER = 13;    // Go Back N timer fired, resending the window: base
+    int TIMER_CANCELLED = 14;  // Go Back N timer stopped, every segment acked
+    int SACK_HOLE = 15;        // Selective Repeat segment resent early, acked around: seqNum
+    int RECEIVED_FIN = 16;     // FIN received
+    int DROPPED = 17;          // Events lost because the log could not keep up: count
+    int FAST_RETRANSMIT = 18;  // Go Back N window resent after duplicate acks: base, duplicate acks
+    int MTU_PROBE = 19;        // Path MTU probe sent: datagram size, probe id, delay in msec
+    int MTU_UPDATE = 20;       // Path MTU probe answered, segment size raised: new MSS, datagram size
+    int MTU_BLACK_HOLE = 21;   // Segment size in use stopped getting through, and was lowered: new MSS, datagram size
+
+    /** Takes one event. Called on the log's background thread only
+     *
+     * @param time RDT.clock.currentTimeMillis() when the event was recorded
+     * @param type one of the event types above
+     * @param a first argument
+     * @param b second argument
+     * @param c third argument
+     * @param d fourth argument
+     */
+    void event(long time, int type, int a, int b, int c, int d);
+
+    /** Called after each batch of events, e.g. to flush buffered output
+     *
+     */
+    default void flush() {}
+} // end EventSink interface
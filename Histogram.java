@@ -0,0 +1,103 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Latency histogram with power-of-two buckets in microseconds, from 1 usec up to about half an hour. Recording
+ * a value is one bucket lookup and two LongAdder increments, so it is cheap enough for every ack and every
+ * delivered segment, and safe from any thread
+ *
+ * @author Chris Harris
+ */
+class Histogram {
+    static final int BUCKETS = 32; // Bucket i counts values of at most 2^i usec, the last one everything larger
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder(); // usec
+
+    Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /** Records one value
+     *
+     * @param nanos the value in nanoseconds
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = (micros <= 1) ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+
+        counts[Math.min(bucket, BUCKETS - 1)].increment();
+        sum.add(micros);
+    }
+
+    /** Returns the number of values recorded in one bucket
+     *
+     * @param bucket index of the bucket
+     * @return the count
+     */
+    long count(int bucket) {
+        return counts[bucket].sum();
+    }
+
+    /** Returns the number of values recorded
+     *
+     * @return the count
+     */
+    long count() {
+        long total = 0;
+
+        for (LongAdder c : counts) {
+            total += c.sum();
+        }
+
+        return total;
+    }
+
+    /** Returns the sum of the values recorded
+     *
+     * @return the sum in seconds
+     */
+    double sumSeconds() {
+        return sum.sum() / 1e6;
+    }
+
+    /** Returns the largest value a bucket counts
+     *
+     * @param bucket index of the bucket
+     * @return the bound in seconds, infinite for the last bucket
+     */
+    static double upperBound(int bucket) {
+        return (bucket == BUCKETS - 1) ? Double.POSITIVE_INFINITY : (1L << bucket) / 1e6;
+    }
+
+    /** Estimates a percentile as the upper bound of the bucket it falls in
+     *
+     * @param q the percentile, between 0 and 1
+     * @return the estimate in msec, or 0 if nothing has been recorded
+     */
+    double percentile(double q) {
+        long total = count();
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i].sum();
+
+            if (seen >= rank) {
+                return (1L << i) / 1e3;
+            }
+        }
+
+        return (1L << (BUCKETS - 1)) / 1e3;
+    }
+} // end Histogram class
@@ -0,0 +1,232 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Keeps track of the metrics of every live connection, and exports them: as one JMX MBean per connection, and
+ * as a Prometheus text page served on the loopback interface at /metrics. Nothing is exported until
+ * RDT.exportMetrics() is called, though the counters themselves are always kept
+ *
+ * @author Chris Harris
+ */
+class Metrics {
+    private static final Set<ConnectionMetrics> live = ConcurrentHashMap.newKeySet();
+    private static volatile boolean jmx = false;
+    private static HttpServer server; // Guarded by Metrics.class
+
+    /** A metric family of the Prometheus page, read from each connection
+     *
+     */
+    private static class Family {
+        final String name, help, type;
+        final ToDoubleFunction<ConnectionMetrics> value;
+
+        Family(String name_, String type_, String help_, ToDoubleFunction<ConnectionMetrics> value_) {
+            name = name_;
+            type = type_;
+            help = help_;
+            value = value_;
+        }
+    }
+
+    private static final Family[] FAMILIES = {
+        new Family("rdt_segments_sent_total", "counter", "Data segments sent for the first time", m -> m.getSegmentsSent()),
+        new Family("rdt_bytes_sent_total", "counter", "Data bytes sent for the first time", m -> m.getBytesSent()),
+        new Family("rdt_retransmissions_total", "counter", "Data segments sent again", m -> m.getRetransmissions()),
+        new Family("rdt_timeouts_total", "counter", "Retransmission timer expiries", m -> m.getTimeouts()),
+        new Family("rdt_timer_restarts_total", "counter", "Go Back N timer restarts", m -> m.getTimerRestarts()),
+        new Family("rdt_fast_retransmits_total", "counter", "Segments resent before their timer expired", m -> m.getFastRetransmits()),
+        new Family("rdt_window_probes_total", "counter", "Zero window probes sent", m -> m.getWindowProbes()),
+        new Family("rdt_lost_segments_total", "counter", "Data segments dropped by the emulated network", m -> m.getLostSegments()),
+        new Family("rdt_acks_sent_total", "counter", "Acks sent", m -> m.getAcksSent()),
+        new Family("rdt_acks_received_total", "counter", "Acks received", m -> m.getAcksReceived()),
+        new Family("rdt_duplicate_acks_total", "counter", "Acks that acknowledged nothing new", m -> m.getDuplicateAcks()),
+        new Family("rdt_lost_acks_total", "counter", "Acks dropped by the emulated network", m -> m.getLostAcks()),
+        new Family("rdt_segments_received_total", "counter", "Data segments received", m -> m.getSegmentsReceived()),
+        new Family("rdt_out_of_order_segments_total", "counter", "Data segments received ahead of a gap", m -> m.getOutOfOrderSegments()),
+        new Family("rdt_duplicate_segments_total", "counter", "Data segments received more than once", m -> m.getDuplicateSegments()),
+        new Family("rdt_segments_delivered_total", "counter", "Data segments taken by the application", m -> m.getSegmentsDelivered()),
+        new Family("rdt_bytes_delivered_total", "counter", "Data bytes taken by the application", m -> m.getBytesDelivered()),
+        new Family("rdt_segments_in_flight", "gauge", "Segments sent but not yet acked", m -> m.getSegmentsInFlight()),
+        new Family("rdt_congestion_window", "gauge", "Congestion window in segments", m -> m.getCongestionWindow()),
+        new Family("rdt_max_segment_size_bytes", "gauge", "Largest data segment body sent", m -> m.getMaxSegmentSize()),
+        new Family("rdt_receive_buffer_occupancy", "gauge", "Segments waiting in the receive buffer", m -> m.getReceiveBufferOccupancy()),
+        new Family("rdt_srtt_seconds", "gauge", "Smoothed round trip time", m -> m.getSmoothedRttMillis() / 1e3),
+        new Family("rdt_rto_seconds", "gauge", "Retransmission timeout", m -> m.getRtoMillis() / 1e3),
+    };
+
+    /** Adds a new connection's metrics
+     *
+     * @param m the metrics
+     */
+    static void register(ConnectionMetrics m) {
+        live.add(m);
+
+        if (jmx) {
+            registerMBean(m);
+        }
+    }
+
+    /** Removes a connection's metrics once it has been closed
+     *
+     * @param m the metrics
+     */
+    static void unregister(ConnectionMetrics m) {
+        if (!live.remove(m) || !jmx) {
+            return;
+        }
+
+        try {
+            ObjectName name = m.objectName();
+
+            if (name != null && ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            System.out.println("Metrics unregister(): " + e);
+        }
+    }
+
+    private static void registerMBean(ConnectionMetrics m) {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = m.objectName();
+
+        try {
+            if (name != null && !mbs.isRegistered(name)) {
+                mbs.registerMBean(m, name);
+            }
+        } catch (JMException e) {
+            System.out.println("Metrics registerMBean(): " + e);
+        }
+    }
+
+    /** Starts exporting: registers an MBean for every connection, now and from here on, and optionally starts the
+     * HTTP endpoint
+     *
+     * @param port port the Prometheus endpoint listens on at the loopback address, or 0 for JMX only
+     * @return false if the endpoint could not be started
+     */
+    static synchronized boolean export(int port) {
+        if (!jmx) {
+            jmx = true;
+
+            for (ConnectionMetrics m : live) {
+                registerMBean(m);
+            }
+        }
+
+        if (port <= 0 || server != null) {
+            return true;
+        }
+
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            return true;
+        } catch (IOException e) {
+            System.out.println("Metrics export(): " + e);
+            server = null;
+            return false;
+        }
+    }
+
+    /** Renders every live connection's metrics in the Prometheus text format
+     *
+     * @return the page
+     */
+    static String scrape() {
+        StringBuilder out = new StringBuilder();
+
+        for (Family f : FAMILIES) {
+            out.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            out.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+
+            for (ConnectionMetrics m : live) {
+                out.append(f.name);
+                labels(out, m, null);
+                out.append(' ');
+                number(out, f.value.applyAsDouble(m));
+                out.append('\n');
+            }
+        }
+
+        histogram(out, "rdt_rtt_seconds", "Round trip time samples", true);
+        histogram(out, "rdt_delivery_latency_seconds", "Time from a segment arriving to the application taking it", false);
+
+        return out.toString();
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, boolean rtt) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+
+        for (ConnectionMetrics m : live) {
+            Histogram h = rtt ? m.rtt : m.deliveryLatency;
+            long cumulative = 0;
+
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                cumulative += h.count(i);
+                double bound = Histogram.upperBound(i);
+
+                out.append(name).append("_bucket");
+                labels(out, m, Double.isInfinite(bound) ? "+Inf" : Double.toString(bound));
+                out.append(' ').append(cumulative).append('\n');
+            }
+
+            out.append(name).append("_sum");
+            labels(out, m, null);
+            out.append(' ').append(h.sumSeconds()).append('\n');
+
+            out.append(name).append("_count");
+            labels(out, m, null);
+            out.append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    /** Appends a value, without a fraction if it is a whole number as counters always are
+     *
+     */
+    private static void number(StringBuilder out, double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        }
+        else {
+            out.append(value);
+        }
+    }
+
+    private static void labels(StringBuilder out, ConnectionMetrics m, String le) {
+        out.append("{peer=\"").append(m.peer.getHostString()).append(':').append(m.peer.getPort())
+                .append("\",conn=\"").append(m.connId).append('"');
+
+        if (le != null) {
+            out.append(",le=\"").append(le).append('"');
+        }
+
+        out.append('}');
+    }
+} // end Metrics class
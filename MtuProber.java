@@ -0,0 +1,206 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import static rdt.RDT.segments;
+import static rdt.RDTSegment.HDR_SIZE;
+
+/** Finds the largest datagram the path to the peer delivers, up to a ceiling, and raises the connection's segment
+ * size to fit it (packetization layer path MTU discovery, RFC 8899). Probes are padded segments outside the
+ * sequence space, which the peer answers but never delivers, so a lost probe costs only itself: it is neither
+ * retransmitted nor counted as congestion. The search is a binary search between the largest datagram known to get
+ * through and the smallest one that failed MAX_PROBES times in a row, one probe outstanding at a time, and it is run
+ * again every RAISE_INTERVAL in case the path has changed. Once the segment size has been raised, each search, and
+ * any retransmission timeout, first probes the size in use again. If that fails MAX_PROBES times in a row, the path
+ * has become a black hole for it, and the segment size falls back to the one from before probing. Segments already
+ * numbered keep the size they were cut at, so only data sent afterwards uses a changed size, and those cut at a size
+ * that has become a black hole are not delivered until the path carries it again.
+ *
+ * Java 17 cannot set Don't Fragment on a datagram, so IP fragments a probe larger than the path MTU instead of
+ * dropping it, and without a ceiling the search would end at the UDP maximum, with every segment fragmented. Sizes
+ * are therefore only probed up to RDT.maxProbeSize, which should be what the path carries unfragmented
+ *
+ * @author Chris Harris
+ */
+class MtuProber {
+    static final int MAX_PROBES = 3;           // Probes of one size lost in a row before the size is given up on
+    static final int RESOLUTION = 64;          // The search stops once the bounds are this close, in bytes
+    static final long RAISE_INTERVAL = 600000; // Msec between searches once one has finished
+
+    private final RDTBuffer sndBuf;
+    private final UdpTransport transport;
+    private final InetSocketAddress dst;
+    private final int connId;
+    private final int floor;   // Segment size before probing raised it, fallen back to when a raised size fails
+    private final int ceiling; // Largest datagram probed
+
+    // Guarded by this
+    private int low;            // Largest datagram known to get through
+    private int high;           // Smallest datagram known not to, or one past the UDP maximum
+    private int probeSize = 0;  // Size of the outstanding probe, 0 if none is outstanding
+    private int probeId = 0;    // Identifies the outstanding probe, so that late answers to earlier ones are ignored
+    private int failures = 0;   // Probes of probeSize lost in a row
+    private TimingWheel.Timeout timeout; // Next probe, probe timeout or next search
+    private boolean running = false;
+
+    /**
+     *
+     * @param sndBuf_ send buffer whose segment size is raised, and whose timer and RTO time the probes
+     * @param t transport probes are sent through
+     * @param dst_ address of the peer
+     * @param connId_ connection ID stamped on every probe
+     */
+    MtuProber(RDTBuffer sndBuf_, UdpTransport t, InetSocketAddress dst_, int connId_) {
+        sndBuf = sndBuf_;
+        transport = t;
+        dst = dst_;
+        connId = connId_;
+        floor = sndBuf.mss;
+        ceiling = RDT.maxProbeSize;
+    }
+
+    /** Starts a search from the connection's current segment size
+     *
+     */
+    synchronized void start() {
+        cancel();
+        running = true;
+        search();
+    }
+
+    /** Stops searching. The segment size found so far is kept
+     *
+     */
+    synchronized void stop() {
+        running = false;
+        probeSize = 0;
+        cancel();
+    }
+
+    /** Handles the peer's answer to a probe. The probed size got through, so it becomes the new lower bound, and
+     * the connection's segments grow to fill it
+     *
+     * @param id probe id echoed by the peer
+     * @param size size of the datagram the peer received
+     */
+    synchronized void acked(int id, int size) {
+        if (!running || id != probeId || size != probeSize) {
+            return; // Late, or not ours
+        }
+
+        cancel();
+        low = probeSize;
+        probeSize = 0;
+        failures = 0;
+
+        if (low - HDR_SIZE > sndBuf.mss) {
+            sndBuf.mss = low - HDR_SIZE;
+            EventLog.info(EventSink.MTU_UPDATE, sndBuf.mss, low, 0, 0);
+        }
+
+        next();
+    }
+
+    /** Called on a retransmission timeout. Data lost to a raised segment size the path no longer carries looks like
+     * congestion to the sender, so the size is probed again at once, rather than at the next search
+     *
+     */
+    synchronized void timedOut() {
+        if (running && probeSize == 0 && sndBuf.mss > floor) {
+            cancel();
+            search();
+        }
+    }
+
+    /** Restarts the search with the whole range between the current segment size and the ceiling, probing the
+     * current size first if an earlier search raised it
+     *
+     */
+    private synchronized void search() {
+        if (!running) {
+            return;
+        }
+
+        low = HDR_SIZE + sndBuf.mss;
+        high = Math.max(low, ceiling) + 1;
+        probeSize = (sndBuf.mss > floor) ? low : 0;
+        failures = 0;
+        next();
+    }
+
+    /** Called when the outstanding probe has gone unanswered for an RTO
+     *
+     */
+    private synchronized void lost() {
+        if (!running || probeSize == 0) {
+            return;
+        }
+
+        if (++failures >= MAX_PROBES) {
+            high = probeSize; // Too large for the path, or at least for this connection's loss rate
+            probeSize = 0;
+            failures = 0;
+
+            // The size in use no longer gets through, so fall back, and search below the size that failed
+            if (high <= HDR_SIZE + sndBuf.mss) {
+                sndBuf.mss = floor;
+                low = HDR_SIZE + floor;
+                EventLog.info(EventSink.MTU_BLACK_HOLE, floor, high, 0, 0);
+            }
+        }
+
+        next();
+    }
+
+    /** Sends the next probe, or schedules the next search once the bounds have met. Probes wait for the first
+     * RTT sample, so that their timeout is meaningful and the peer is known to be there. The caller holds the lock
+     *
+     */
+    private void next() {
+        if (!running) {
+            return;
+        }
+
+        if (sndBuf.rtt.srtt() == 0) {
+            timeout = sndBuf.timer.schedule(this::probe, sndBuf.rtt.rto());
+            return;
+        }
+
+        if (probeSize == 0) {
+            if (high - low <= RESOLUTION) {
+                timeout = sndBuf.timer.schedule(this::search, RAISE_INTERVAL);
+                return;
+            }
+
+            probeSize = (low + high) >>> 1;
+        }
+
+        RDTSegment probe = segments.acquire();
+        int length = probeSize - HDR_SIZE;
+
+        Arrays.fill(probe.buffer(length), 0, length, (byte) 0); // Padding, so that no stale data goes out
+        probe.length = length;
+        probe.flags = RDTSegment.FLAGS_MTU_PROBE;
+        probe.seqNum = ++probeId;
+        probe.connId = connId;
+
+        Utility.udp_send(probe, transport, dst, false);
+        segments.release(probe); // Already encoded by the transport
+
+        timeout = sndBuf.timer.schedule(this::lost, sndBuf.rtt.rto());
+    }
+
+    private synchronized void probe() {
+        next();
+    }
+
+    private void cancel() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+    }
+} // end MtuProber class
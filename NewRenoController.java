@@ -0,0 +1,44 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+/** TCP NewReno congestion control. Behaves like Reno, except that once a loss has been reacted to, further
+ * losses are ignored until everything that was in flight at the time has been acknowledged, so several
+ * losses from one window only halve the window once
+ *
+ * @author Chris Harris
+ */
+class NewRenoController extends RenoController {
+    private int recover = -1;          // Highest sequence number sent when recovery started
+    private boolean inRecovery = false;
+
+    @Override
+    public synchronized void onAck(int acked, int cumulativeAck) {
+        if (inRecovery) {
+            if (cumulativeAck < recover) {
+                return; // Partial ack: hold the window until the whole loss window is acked
+            }
+
+            inRecovery = false;
+        }
+
+        super.onAck(acked, cumulativeAck);
+    }
+
+    @Override
+    public synchronized void onLoss(int highestSent) {
+        if (inRecovery) {
+            return;
+        }
+
+        super.onLoss(highestSent);
+        recover = highestSent;
+        inRecovery = true;
+    }
+
+    @Override
+    public synchronized void onTimeout() {
+        super.onTimeout();
+        inRecovery = false;
+    }
+} // end NewRenoController class
@@ -0,0 +1,71 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.util.concurrent.TimeUnit;
+
+/** Spreads one connection's data segments over the round trip instead of sending a window's worth back to back.
+ * It is a token bucket kept as the time the next segment is due (GCRA): the bucket refills at a rate derived from
+ * window / SRTT, and holds BURST segments, so a segment that finds it empty is held back until enough tokens have
+ * accrued. The wait is handed to the transport as extra delay on the datagram, so no thread ever sleeps, and
+ * retransmissions, which go through here too, are paced the same way. The wait is not network time, so a
+ * segment's sentAt and retransmission timer start from when it actually leaves. The arithmetic is in nanoseconds
+ * on RDT.clock, so spacing well below a millisecond is kept
+ *
+ * @author Chris Harris
+ */
+class Pacer {
+    static final double GAIN = 1.25;            // Headroom over window / SRTT, so that pacing never limits the window
+    static final double SLOW_START_GAIN = 2.0;  // Lets the window double every round trip while in slow start
+    static final int BURST = 2;                 // Segments that may leave back to back
+
+    private final RDTBuffer sndBuf;
+    private long nextSend;     // RDT.clock.nanoTime() at which the bucket is empty again, guarded by this
+    private long lastDeparture; // When the previous datagram leaves, guarded by this
+
+    /**
+     *
+     * @param sndBuf_ send buffer whose window and RTT set the rate
+     */
+    Pacer(RDTBuffer sndBuf_) {
+        sndBuf = sndBuf_;
+        nextSend = lastDeparture = RDT.clock.nanoTime();
+    }
+
+    /** Takes the tokens for one datagram, and works out how long it must be held back. The rate covers whichever
+     * is larger of the congestion window and the segments in flight, so that a Go Back N window resent after a
+     * timeout is spread over one round trip rather than over one per segment
+     *
+     * @param seg segment about to be sent, whose size is charged against the bucket whether or not the
+     *            network then loses it
+     * @return delay in nanoseconds, 0 to send at once
+     */
+    synchronized long delay(RDTSegment seg) {
+        int bytes = RDTSegment.HDR_SIZE + seg.length;
+        double srtt = sndBuf.rtt.srtt();
+
+        if (!RDT.pacing || srtt == 0) {
+            return 0; // No RTT measured yet, so there is nothing to derive a rate from
+        }
+
+        CongestionController cc = sndBuf.cc;
+        int window = Math.max(cc.window(), sndBuf.nextSeqNum - sndBuf.base);
+        double gain = cc.slowStart() ? SLOW_START_GAIN : GAIN;
+
+        // Time the bucket takes to refill this datagram's tokens, at gain * window full segments per SRTT
+        long interval = (long) (srtt * TimeUnit.MILLISECONDS.toNanos(1) * bytes /
+                (gain * window * (sndBuf.mss + RDTSegment.HDR_SIZE)));
+
+        // Readings are only compared by their difference, since System.nanoTime() may be negative
+        long now = RDT.clock.nanoTime();
+        long wait = Math.max(0, nextSend - (BURST - 1) * interval - now);
+
+        // A shrinking window lengthens the interval, but must never let a datagram overtake the one before it
+        wait = Math.max(wait, lastDeparture - now);
+
+        nextSend = ((nextSend - now > 0) ? nextSend : now) + interval;
+        lastDeparture = now + wait;
+
+        return wait;
+    }
+} // end Pacer class
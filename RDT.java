@@ -4,7 +4,11 @@ package rdt;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import static rdt.RDTSegment.FLAGS_FIN;
 
@@ -13,28 +17,65 @@ import static rdt.RDTSegment.FLAGS_FIN;
  * @author Chris Harris
  */
 public class RDT {
-	public static int MSS = 100; // Max segment size in bytes
-	public static final int RTO = 500; // Retransmission Timeout in msec
+	public static int MSS = 100; // Max segment size in bytes, for connections created afterwards
+	public static final int MAX_MSS = UdpTransport.MAX_DATAGRAM_SIZE - RDTSegment.HDR_SIZE; // Fills a UDP datagram
+	public static int maxProbeSize = 1472; // Largest datagram probed for path MTU: 1500 less IPv4 and UDP headers
+	public static final int RTO = 500; // Initial Retransmission Timeout in msec, used until an RTT has been measured
     public static final int TTO = 10000; // Timeout for teardown in msec
 	public static final int ERROR = -1;
 	public static final int MAX_BUF_SIZE = 3;
 	public static final int GBN = 1;   // Go back N protocol
 	public static final int SR = 2;    // Selective Repeat
 	public static int protocol = GBN;
+	public static final int CC_RENO = 1;     // Congestion control algorithms
+	public static final int CC_NEWRENO = 2;
+	public static final int CC_CUBIC = 3;
+	public static int congestionControl = CC_NEWRENO; // Default for new connections
+	public static final int CHECKSUM_SUM8 = 1;   // 8-bit sum of the header fields and body, computed per segment
+	public static final int CHECKSUM_CRC32C = 2; // CRC32C of the whole datagram, computed while encoding it
+	public static int checksumType = CHECKSUM_CRC32C; // Used for every segment sent from here on
 	
+	public static int ackDelay = 0;  // Delayed ack timer in msec, 0 to ack once per batch of received datagrams
+	public static int ackEvery = 2;  // Send an ack at least every N in-order segments
+	public static boolean pacing = false; // Spread data segments over the round trip instead of sending them in bursts
+	public static int dupAckThreshold = 3; // Duplicate acks, or segments acked above a hole, before a loss is presumed
+	
+	public static final int WAIT_BLOCK = 1;  // Threads waiting on a buffer park until woken
+	public static final int WAIT_SPIN = 2;   // Threads waiting on a buffer busy-spin, trading a core for latency
+	public static int waitStrategy = WAIT_BLOCK; // Used by buffers created after it is set
+	
+	public static final int LOG_OFF = 0;    // Record no events
+	public static final int LOG_INFO = 1;   // Record losses, timeouts and recovery
+	public static final int LOG_DEBUG = 2;  // Record every packet as well
+	public static int logLevel = LOG_DEBUG;
+
 	public static double lossRate = 0.0;
+	public static int networkDelay = 200; // Upper bound of the emulated network delay in msec, 0 for none
 	public static Random random = new Random();
-	public static Timer timer = new Timer();
-
-	private DatagramSocket socket; 
-	private InetAddress dst_ip;
-	private int dst_port;
+	static Clock clock = Clock.SYSTEM; // Read by every timer and RTT sample, virtual time under a Simulator
+	static final TimingWheel timer = new TimingWheel(); // Drives every retransmission timer
+	static final SegmentPool segments = new SegmentPool(); // Recycles segments on the send, receive and ack paths
+	static Executor executor = null; // Runs receiver threads and shards, null for a dedicated platform thread each
+	static EventLoop[] eventLoops = null; // Run the connections created afterwards, null for a receiver thread each
+	private static int nextLoop = 0;
+	static Simulator simulator = null; // Runs the connections created afterwards in virtual time, null for real sockets
+
+	private UdpTransport transport;
+	private InetSocketAddress dst;
 	private int local_port;
 	
-	private ReceiverThread rcvThread;
+	private ReceiverThread rcvThread; // Only for a point-to-point connection, a listener reads for its connections
+	RDTListener listener; // Listener that accepted this connection, or null
+	private Receiver receiver;
+	private int connId;
+	private AsyncSender asyncSender; // Created by the first sendAsync()
+	private ConnectionMetrics metrics;
 
 	public int sequence_number = 0;
 
+	private RDTSegment partial;  // Segment only partly copied out by receive(), owned by the receiving thread
+	private int partialOffset;   // Bytes of it already copied out
+
 	// Package-private access
     RDTBuffer sndBuf;
     RDTBuffer rcvBuf;
@@ -54,11 +95,10 @@ public class RDT {
      */
 	RDT (String dst_hostname_, int dst_port_, int local_port_) {
 		local_port = local_port_;
-		dst_port = dst_port_;
+		dst = new InetSocketAddress(dst_hostname_, dst_port_);
 
 		try {
-			 socket = new DatagramSocket(local_port);
-			 dst_ip = InetAddress.getByName(dst_hostname_);
+			 transport = (simulator != null) ? simulator.bind(local_port) : new UdpTransport(local_port);
 		 } catch (IOException e) {
 			 System.out.println("RDT constructor: " + e);
 		 }
@@ -72,8 +112,11 @@ public class RDT {
 //            rcvBuf = new RDTBuffer(MAX_BUF_SIZE);
 //        }
 
-		rcvThread = new ReceiverThread(rcvBuf, sndBuf, socket, dst_ip, dst_port);
-		rcvThread.start();
+		connId = random.nextInt();
+		receiver = new Receiver(rcvBuf, sndBuf, transport, dst, connId);
+		registerMetrics();
+		rcvThread = new ReceiverThread(transport, receiver);
+		startReceiving();
 	}
 
     /**
@@ -86,11 +129,10 @@ public class RDT {
      */
 	RDT (String dst_hostname_, int dst_port_, int local_port_, int sndBufSize, int rcvBufSize) {
 		local_port = local_port_;
-		dst_port = dst_port_;
+		dst = new InetSocketAddress(dst_hostname_, dst_port_);
 
-		 try {
-			 socket = new DatagramSocket(local_port);
-			 dst_ip = InetAddress.getByName(dst_hostname_);
+		try {
+			 transport = (simulator != null) ? simulator.bind(local_port) : new UdpTransport(local_port);
 		 } catch (IOException e) {
 			 System.out.println("RDT constructor: " + e);
 		 }
@@ -98,9 +140,70 @@ public class RDT {
 		sndBuf = new RDTBuffer(sndBufSize);
         rcvBuf = new RDTBuffer(rcvBufSize);
 
-		rcvThread = new ReceiverThread(rcvBuf, sndBuf, socket, dst_ip, dst_port);
-		rcvThread.start();
+		connId = random.nextInt();
+		receiver = new Receiver(rcvBuf, sndBuf, transport, dst, connId);
+		registerMetrics();
+		rcvThread = new ReceiverThread(transport, receiver);
+		startReceiving();
+	}
+
+    /** Hands the receiver thread's work to the simulator or the next event loop, or starts it on a thread of its own
+     *
+     */
+	private void startReceiving() {
+	    if (simulator != null) {
+	        sndBuf.timer = simulator.timer;
+	        simulator.register(transport, rcvThread);
+	        return;
+	    }
+
+	    EventLoop loop = nextEventLoop();
+
+	    if (loop != null) {
+	        sndBuf.timer = loop.timer;
+	        loop.register(transport, rcvThread);
+	    }
+	    else {
+	        execute(rcvThread, "rdt-receiver-" + local_port);
+	    }
+	}
+
+    /** Creates a connection accepted by a listener. It shares the listener's transport, and the listener's
+     * thread hands it the segments its peer sends
+     *
+     * @param t transport of the listener
+     * @param dst_ address of the peer
+     * @param connId_ connection ID chosen by the peer
+     * @param sndBufSize size of the send buffer
+     * @param rcvBufSize size of the receive buffer
+     */
+	RDT (UdpTransport t, InetSocketAddress dst_, int connId_, int sndBufSize, int rcvBufSize) {
+		transport = t;
+		dst = dst_;
+		connId = connId_;
+
+		sndBuf = new RDTBuffer(sndBufSize);
+        rcvBuf = new RDTBuffer(rcvBufSize);
+
+		receiver = new Receiver(rcvBuf, sndBuf, transport, dst, connId);
+		registerMetrics();
+	}
+
+    /** Creates the connection's metrics, shared with its send buffer, and makes them available for export
+     *
+     */
+	private void registerMetrics() {
+	    metrics = new ConnectionMetrics(dst, connId, sndBuf, rcvBuf);
+	    sndBuf.metrics = metrics;
+	    Metrics.register(metrics);
+	}
 
+    /** Returns the Receiver handling this connection's incoming segments
+     *
+     * @return the Receiver
+     */
+	Receiver receiver() {
+	    return receiver;
 	}
 
     /** Sets the simulated rate at which packets are lost over the network
@@ -111,14 +214,264 @@ public class RDT {
 	    lossRate = rate;
 	}
 
-    /** Sets the maximum size of body data in an RDT segment
+    /** Sets the upper bound of the random delay the emulated network adds to each packet. With no delay, packets
+     * are written straight to the socket instead of passing through the delay line
+     *
+     * @param maxDelay maximum delay in msec, 0 to disable
+     */
+	public static void setNetworkDelay(int maxDelay) {
+	    networkDelay = maxDelay;
+	}
+
+    /** Configures delayed acks. The receiver acks once it has drained every queued datagram, but holds back an
+     * ack for in-order data until ackEvery segments have arrived or ackDelay has passed
+     *
+     * @param delay delayed ack timer in msec, 0 to ack at the end of every batch
+     * @param every maximum number of in-order segments covered by one ack
+     */
+	public static void setDelayedAck(int delay, int every) {
+	    ackDelay = delay;
+	    ackEvery = Math.max(1, every);
+	}
+
+    /** Turns send pacing on or off. While on, each connection's data segments, retransmissions included, leave at
+     * a rate derived from its window and smoothed RTT rather than back to back, so that a window's worth of
+     * datagrams does not overflow switch and socket buffers on the way. Off by default: a held back segment goes
+     * through the emulated network's delay line, a single thread shared by every connection in the process,
+     * whose wait is not precise below a millisecond
+     *
+     * @param on whether or not to pace
+     */
+	public static void setPacing(boolean on) {
+	    pacing = on;
+	}
+
+    /** Sets how many duplicate acks make the sender presume a segment lost and resend it at once, instead of
+     * waiting for the retransmission timer. Go Back N counts acks repeating the one below base, and Selective
+     * Repeat counts segments acknowledged above a hole
+     *
+     * @param threshold number of duplicate acks, or 0 to rely on the timer alone
+     */
+	public static void setDupAckThreshold(int threshold) {
+	    dupAckThreshold = Math.max(0, threshold);
+	}
+
+    /** Selects how the application and receiver threads wait on a full or empty buffer. Only affects
+     * connections created afterwards
+     *
+     * @param strategy WAIT_BLOCK or WAIT_SPIN
+     */
+	public static void setWaitStrategy(int strategy) {
+	    waitStrategy = strategy;
+	}
+
+    /** Selects the executor that runs the per-connection work: the receiver thread of each point-to-point
+     * connection, and a listener's reading thread and shards. Each task runs for the life of its connection, so
+     * the executor must not bound the number of tasks running at once. Only affects connections created afterwards
+     *
+     * @param e the executor, or null for a dedicated platform thread per task
+     */
+	public static void setExecutor(Executor e) {
+	    executor = e;
+	}
+
+    /** Runs the per-connection work on virtual threads, one per task, so that thousands of connections do not
+     * need thousands of platform threads. Blocking in send(), receive() and flush() parks without pinning a
+     * carrier thread, so the application's own threads may be virtual too
+     *
+     * @return false if this JVM does not support virtual threads, in which case nothing is changed
+     */
+	public static boolean useVirtualThreads() {
+	    try {
+	        // Looked up reflectively, so that this still builds and runs on JVMs without virtual threads
+	        executor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+	        return true;
+	    } catch (ReflectiveOperationException e) {
+	        System.out.println("RDT useVirtualThreads(): " + e);
+	        return false;
+	    }
+	}
+
+    /** Runs every connection and listener created afterwards on a fixed number of event loops, instead of a
+     * receiver thread each. Each loop is a single thread that reads, processes acks and fires retransmission timers
+     * for all of its connections, which are handed out round robin, so the transport needs the same handful of
+     * threads however many connections there are. Loops already running keep their connections
+     *
+     * @param n number of event loops, e.g. the number of cores, or 0 to go back to a receiver thread per connection
+     */
+	public static synchronized void setEventLoops(int n) {
+	    if (n <= 0) {
+	        eventLoops = null;
+	        return;
+	    }
+
+	    EventLoop[] loops = new EventLoop[n];
+
+	    try {
+	        for (int i = 0; i < n; i++) {
+	            loops[i] = new EventLoop();
+	        }
+	    } catch (IOException e) {
+	        System.out.println("RDT setEventLoops(): " + e);
+	        return;
+	    }
+
+	    for (int i = 0; i < n; i++) {
+	        execute(loops[i], "rdt-event-loop-" + i);
+	    }
+
+	    eventLoops = loops;
+	    nextLoop = 0;
+	}
+
+    /** Runs every connection created afterwards inside a simulation instead of over real sockets. Its datagrams
+     * travel between the simulator's endpoints in memory, its timers and RTT samples read the simulator's virtual
+     * clock, and connection IDs, losses and delays are drawn from the simulator's seeded generator, so that a run
+     * can be reproduced from its seed. Everything happens inside Simulator.run(), on the calling thread, so the
+     * connections must be driven with sendAsync() and a DeliveryHandler rather than the blocking calls
+     *
+     * @param sim the simulator, or null to go back to real sockets and time
+     */
+	public static synchronized void setSimulator(Simulator sim) {
+	    simulator = sim;
+	    clock = (sim != null) ? sim : Clock.SYSTEM;
+	    random = (sim != null) ? sim.random : new Random();
+	}
+
+    /** Picks the event loop for a new connection or listener
+     *
+     * @return the loop, or null if event loops are not in use
+     */
+	static synchronized EventLoop nextEventLoop() {
+	    if (eventLoops == null) {
+	        return null;
+	    }
+
+	    EventLoop loop = eventLoops[nextLoop];
+	    nextLoop = (nextLoop + 1) % eventLoops.length;
+
+	    return loop;
+	}
+
+    /** Starts a long running task on the configured executor
      *
-     * @param maxSize maximum segment size in bytes
+     * @param task task to be run
+     * @param name name of the thread, when a platform thread is created for it
+     */
+	static void execute(Runnable task, String name) {
+	    Executor e = executor;
+
+	    if (e != null) {
+	        e.execute(task);
+	    }
+	    else {
+	        new Thread(task, name).start();
+	    }
+	}
+
+    /** Sets the maximum size of body data in an RDT segment, for connections created afterwards
+     *
+     * @param maxSize maximum segment size in bytes, at most MAX_MSS
      */
 	public static void setMSS(int maxSize) {
-	    MSS = maxSize;
+	    MSS = Math.max(1, Math.min(maxSize, MAX_MSS));
     }
 
+    /** Sets the largest datagram path MTU probing tries, for connections that turn it on afterwards. Datagrams are
+     * sent without Don't Fragment, so a larger probe is usually fragmented and delivered rather than dropped, and
+     * the ceiling is what keeps the segment size within what the path carries unfragmented. Raise it for jumbo
+     * frames, or to UdpTransport.MAX_DATAGRAM_SIZE on loopback
+     *
+     * @param size datagram size in bytes, header included, at most 65507
+     */
+	public static void setMaxProbeSize(int size) {
+	    maxProbeSize = Math.max(RDTSegment.HDR_SIZE + 1, Math.min(size, UdpTransport.MAX_DATAGRAM_SIZE));
+	}
+
+    /** Sets which events are recorded in the event log. Events below the level cost a single field read
+     *
+     * @param level LOG_OFF, LOG_INFO or LOG_DEBUG
+     */
+	public static void setLogLevel(int level) {
+	    logLevel = level;
+	}
+
+    /** Sets where the event log's background thread sends recorded events. By default they are printed to stdout
+     * in color
+     *
+     * @param sink the sink, which is called on the log's thread only
+     */
+	public static void setLogSink(EventSink sink) {
+	    EventLog.sink = sink;
+	}
+
+    /** Exports the metrics of every connection, current and future: each as a JMX MBean named
+     * rdt:type=Connection,peer=...,conn=..., and all of them as a Prometheus text page served at
+     * http://127.0.0.1:port/metrics. The counters are kept whether or not they are exported
+     *
+     * @param port port of the Prometheus endpoint, or 0 for JMX only
+     * @return false if the endpoint could not be started
+     */
+	public static boolean exportMetrics(int port) {
+	    return Metrics.export(port);
+	}
+
+    /** Selects the checksum carried by segments sent from here on. A CRC32C is computed over the encoded datagram
+     * in the same pass that writes it, flagged in the header, and checked over the raw datagram before it is
+     * decoded, so a receiver handles either kind whatever its own setting
+     *
+     * @param type CHECKSUM_SUM8 or CHECKSUM_CRC32C
+     */
+	public static void setChecksum(int type) {
+	    checksumType = type;
+	}
+
+    /** Selects the congestion control algorithm used by this connection's sender
+     *
+     * @param algorithm CC_RENO, CC_NEWRENO or CC_CUBIC
+     */
+	public void setCongestionControl(int algorithm) {
+	    sndBuf.setCongestionController(CongestionController.create(algorithm));
+    }
+
+    /** Sets the maximum size of body data in the segments this connection sends from here on. Segments already
+     * queued keep their size, and the peer accepts any size up to MAX_MSS whatever its own setting
+     *
+     * @param maxSize maximum segment size in bytes, at most MAX_MSS
+     */
+	public void setMaxSegmentSize(int maxSize) {
+	    sndBuf.mss = Math.max(1, Math.min(maxSize, MAX_MSS));
+	}
+
+    /** Returns the maximum size of body data in the segments this connection sends, which path MTU probing may
+     * have raised
+     *
+     * @return maximum segment size in bytes
+     */
+	public int getMaxSegmentSize() {
+	    return sndBuf.mss;
+	}
+
+    /** Turns path MTU probing on or off for this connection. While on, the connection sends padded probes of
+     * growing size alongside its data, up to maxProbeSize, and each probe the peer answers raises its segment size
+     * to fill that datagram, so that the path is used with as few datagrams as possible. A finished search is
+     * repeated every ten minutes in case the path has changed, and a raised size that stops getting through is
+     * given up for the one the connection had before. Probes are not delivered, and losing one is not taken as
+     * congestion. The peer must run a version that answers probes
+     *
+     * @param on whether or not to probe
+     */
+	public synchronized void setPathMtuProbing(boolean on) {
+	    if (on && sndBuf.prober == null) {
+	        sndBuf.prober = new MtuProber(sndBuf, transport, dst, connId);
+	        sndBuf.prober.start();
+	    }
+	    else if (!on && sndBuf.prober != null) {
+	        sndBuf.prober.stop();
+	        sndBuf.prober = null;
+	    }
+	}
+
     /** Creates and places segments into a send buffer (for later processing, i.e. tracking of acks), and sends
      * segments over the network using udp_send().
      *
@@ -127,70 +480,146 @@ public class RDT {
      * @return total number of sent bytes
      */
 	public int send(byte[] data, int size) {
+	    return send(data, 0, size);
+	}
 
-	    /*------------------------------------------------------------------------
+    /** Cuts part of an array into segments of at most the connection's MSS and sends them. Each segment carries
+     * exactly the bytes it holds, and its body is filled with one bulk copy, so the array may be reused as soon as
+     * this returns
+     *
+     * @param data array holding the data to be sent to the receiver
+     * @param off index of the first byte to send
+     * @param len number of bytes to send
+     * @return total number of sent bytes
+     */
+	public int send(byte[] data, int off, int len) {
+	    for (int pos = off; pos < off + len; ) {
+	        int length = Math.min(sndBuf.mss, off + len - pos); // Read per segment, since probing may raise it
+	        RDTSegment seg = segments.acquire();
 
-                                     GO-BACK-N
+	        System.arraycopy(data, pos, seg.buffer(length), 0, length);
+	        seg.length = length;
+	        pos += length;
 
-        ------------------------------------------------------------------------*/
-		if (protocol == GBN) {
+	        sendSegment(seg);
+	    }
 
-            if (size > MSS) {
-                double numSegments = Math.ceil((double) size / MSS);
+	    return len;
+	}
 
-                for (int i = 0; i < numSegments; i++) {
-                    RDTSegment seg = new RDTSegment();
-                    byte segData[] = new byte[MSS];
+    /** Sends the remaining bytes of a buffer without copying them. Each segment holds a slice of the buffer,
+     * which is encoded straight into the datagram whenever the segment is sent or resent, so the contents must
+     * not be changed until flush() returns. The buffer's position is moved up to its limit
+     *
+     * @param data buffer holding the data to be sent to the receiver between its position and limit
+     * @return total number of sent bytes
+     */
+	public int send(ByteBuffer data) {
+	    int len = data.remaining();
 
-                    for (int j = MSS * i, k = 0; j < (MSS * i) + MSS; j++, k++) {
-                        if (j < size) {
-                            segData[k] = data[j];
-                        }
-                        else {
-                            segData[k] = 0;  // Padding out last segment with zeros
-                        }
-                    }
+	    for (int pos = data.position(); pos < data.limit(); ) {
+	        int length = Math.min(sndBuf.mss, data.limit() - pos);
+	        RDTSegment seg = segments.acquire();
+	        seg.setBody(data.slice(pos, length));
+	        pos += length;
 
-                    seg.seqNum = sequence_number++;
-                    seg.length = MSS;
-                    seg.setData(segData);
-                    seg.checksum = seg.computeChecksum();
+	        sendSegment(seg);
+	    }
 
-                    sndBuf.putNext(seg); // Put segment into send buffer
+	    data.position(data.limit());
 
-                    Utility.udp_send(seg, socket, dst_ip, dst_port, false);
+	    return len;
+	}
 
-                    if (sndBuf.base == sndBuf.nextSeqNum) {
-                        System.out.println(System.currentTimeMillis() + ":" + ANSI_CYAN + " START TIMER: " + ANSI_RESET +
-                                "base=" + sndBuf.base + " nextSeqNum=" + sndBuf.nextSeqNum);
-                        sndBuf.runTimerTask(socket, dst_ip, dst_port);
-                    }
+    /** Sends part of an array without waiting for the windows. The message is queued and sent as the windows allow,
+     * partly by the caller and partly by the thread processing acks, so no thread is tied up while it is in
+     * flight. Messages are sent in the order they are queued. A connection should use either send() or
+     * sendAsync() at any one time, not both at once
+     *
+     * @param data array holding the data to be sent to the receiver, which must not be changed until the future
+     *             completes
+     * @param off index of the first byte to send
+     * @param len number of bytes to send
+     * @return future completed with len once a cumulative ack covers the whole message
+     */
+	public CompletableFuture<Integer> sendAsync(byte[] data, int off, int len) {
+	    if (asyncSender == null) {
+	        asyncSender = new AsyncSender(this, sndBuf, transport, dst, connId);
+	        sndBuf.sender = asyncSender;
+	    }
 
-                    sndBuf.nextSeqNum++;
-                }
-            }
-            else {
-                RDTSegment seg = new RDTSegment();
-                seg.seqNum = sequence_number++;
+	    return asyncSender.send(data, off, len);
+	}
 
-                byte segData[] = new byte[size];
-                System.arraycopy(data, 0, segData, 0, size);
+    /** Hands in-order data to a callback instead of queueing it for receive(). Set it before the peer starts
+     * sending, and do not call receive() on the same connection afterwards
+     *
+     * @param handler callback run on the thread processing this connection's segments, or null to go back to
+     *                receive()
+     */
+	public void setDeliveryHandler(DeliveryHandler handler) {
+	    receiver.handler = handler;
+	}
 
-                seg.length = size;
-                seg.setData(segData);
-                seg.checksum = seg.computeChecksum();
+    /** Blocks until every segment sent so far has been acknowledged, after which buffers passed to
+     * send(ByteBuffer) may be reused
+     *
+     */
+	public void flush() {
+	    sndBuf.awaitAcked();
+	}
 
-                sndBuf.putNext(seg); // Put segment into send buffer
+    /** Numbers a segment, places it in the send buffer once the windows allow it, and sends it over the network
+     *
+     * @param seg segment holding at most the connection's MSS of data, owned by the send buffer from here on
+     */
+	private void sendSegment(RDTSegment seg) {
+	    sndBuf.awaitWindow(transport, dst, connId); // Wait for the congestion and receive windows to allow another segment in flight
+	    transmit(seg);
+	}
 
-                Utility.udp_send(seg, socket, dst_ip, dst_port, false);
+    /** Numbers a segment, places it in the send buffer and sends it over the network. The caller has already made
+     * sure that the windows allow another segment in flight, so this never waits
+     *
+     * @param seg segment holding at most the connection's MSS of data, owned by the send buffer from here on
+     * @return the segment's sequence number
+     */
+	int transmit(RDTSegment seg) {
+	    int seqNum = sequence_number++;
 
+	    seg.seqNum = seqNum;
+	    seg.connId = connId;
+
+	    if (checksumType == CHECKSUM_SUM8) {
+	        seg.checksum = seg.computeChecksum(); // A CRC32C is filled in by the encoder instead
+	    }
+
+	    sndBuf.putNext(seg); // Put segment into send buffer
+
+	    /*------------------------------------------------------------------------
+
+                                     GO-BACK-N
+
+        ------------------------------------------------------------------------*/
+		if (protocol == GBN) {
+            long paced = sndBuf.pacer.delay(seg);
+
+            // Count the segment as sent and start the timer first, like Selective Repeat, so that an early ack is
+            // not clipped as being beyond the window and always finds the timer to cancel
+            sndBuf.lock.lock();
+
+            try {
                 if (sndBuf.base == sndBuf.nextSeqNum) {
-                    System.out.println(System.currentTimeMillis() + ":" + ANSI_CYAN + " START TIMER: " + ANSI_RESET +
-                            "base=" + sndBuf.base + " nextSeqNum=" + sndBuf.nextSeqNum);
-                    sndBuf.runTimerTask(socket, dst_ip, dst_port);
+                    EventLog.debug(EventSink.START_TIMER, sndBuf.base, sndBuf.nextSeqNum, 0, 0);
+                    sndBuf.runTimerTask(transport, dst);
                 }
 
                 sndBuf.nextSeqNum++;
+
+                seg.sentAt = clock.nanoTime() + paced; // When it actually leaves, so the RTT sample leaves out the pacer
+                metrics.sent(seg, Utility.udp_send(seg, transport, dst, false, paced));
+            } finally {
+                sndBuf.lock.unlock();
             }
         }
 
@@ -200,28 +629,30 @@ public class RDT {
 
         ------------------------------------------------------------------------*/
         if (protocol == SR) {
-            RDTSegment seg = new RDTSegment();
-            seg.seqNum = sequence_number++;
-
-            byte segData[] = new byte[size];
-            System.arraycopy(data, 0, segData, 0, size);
-
-            seg.length = size;
-            seg.setData(segData);
-            seg.checksum = seg.computeChecksum();
-
-            sndBuf.putNext(seg); // Put segment into send buffer
+            // Start the timer before sending, so that an early ack always finds it to cancel. It runs from when the
+            // pacer lets the segment leave
+            TimeoutHandler timeoutHandler = new TimeoutHandler(sndBuf, seg, transport, dst);
+            seg.timeoutHandler = timeoutHandler;
+            long rto = sndBuf.rtt.rto();
+            long paced = sndBuf.pacer.delay(seg);
+            long firstRto = rto + (long) Math.ceil(paced / 1e6);
+            seg.timer = sndBuf.timer.schedule(timeoutHandler, firstRto, rto); // Cancelled when the ack is received
 
-            Utility.udp_send(seg, socket, dst_ip, dst_port, false);
+            // Count the segment as sent first, so that an early ack is not clipped as being beyond the window. Hold
+            // the lock while sending, since an ack for a retransmitted copy could otherwise recycle the segment first
+            sndBuf.lock.lock();
 
-            TimeoutHandler timeoutHandler = new TimeoutHandler(sndBuf, seg, socket, dst_ip, dst_port);
-            seg.timeoutHandler = timeoutHandler;
-            seg.timer.schedule(timeoutHandler, RTO, RTO); // Timer will be cancelled when ack is received
+            try {
+                sndBuf.nextSeqNum++;
 
-            sndBuf.nextSeqNum++;
+                seg.sentAt = clock.nanoTime() + paced;
+                metrics.sent(seg, Utility.udp_send(seg, transport, dst, false, paced));
+            } finally {
+                sndBuf.lock.unlock();
+            }
         }
 
-		return size;
+        return seqNum;
 	}
 
     /** Takes packets placed into the receive buffer by the receiver thread, and delivers them to the upper layer
@@ -231,32 +662,95 @@ public class RDT {
      * @return number of bytes copied in buf
      */
 	public int receive (byte[] buf, int size) {
-        RDTSegment seg = rcvBuf.getNext();
+	    return receive(buf, 0, size);
+	}
 
-        if (seg != null && seg.containsData()) {
-            System.arraycopy(seg.getData(), 0, buf, 0, seg.length);
-            String segData = Utility.dataToString(seg.getData());
+    /** Fills part of an array from as many in-order segments as are ready. Waits only while nothing at all has
+     * been received; once some data has been copied, it returns as soon as the receive buffer runs dry. A segment
+     * that does not fit is kept, and the rest of it is returned by the next call. Like send(), only one thread
+     * may receive at a time
+     *
+     * @param buf array into which the received data should be copied
+     * @param off index of the first byte to fill
+     * @param len maximum number of bytes to copy
+     * @return number of bytes copied in buf
+     */
+	public int receive(byte[] buf, int off, int len) {
+	    int copied = 0;
 
-            if (protocol == GBN) {
-                System.out.println(System.currentTimeMillis() + ":" + ANSI_YELLOW + " RECEIVED SEGMENT: " + ANSI_RESET +
-                        "SeqNum=" + seg.seqNum + " Checksum=" + seg.checksum + " Data=" + segData);
-            }
-            else {
-                System.out.println(System.currentTimeMillis() + ":" + ANSI_PURPLE + " SEGMENT DELIVERED TO UPPER LAYER: " +
-                        ANSI_RESET + "SeqNum=" + seg.seqNum + " Checksum=" + seg.checksum + " Data=" + segData);
-            }
-        }
-        else {
-            return 0;
-        }
+	    while (copied < len) {
+	        RDTSegment seg = partial;
+
+	        if (seg == null) {
+	            seg = (copied == 0) ? rcvBuf.getNext() : rcvBuf.pollNext();
+
+	            if (seg == null) {
+	                break;
+	            }
+
+	            if (!seg.containsData()) {
+	                segments.release(seg);
+	                continue;
+	            }
+
+	            EventLog.debug(EventSink.DELIVERED, seg.seqNum, seg.checksum, 0, 0);
+	            metrics.delivered(seg);
+
+	            partialOffset = 0;
+	        }
+
+	        int n = Math.min(seg.length - partialOffset, len - copied);
+	        System.arraycopy(seg.getData(), partialOffset, buf, off + copied, n);
+	        copied += n;
+
+	        if (partialOffset + n < seg.length) {
+	            partial = seg; // Keep the rest for the next call
+	            partialOffset += n;
+	        }
+	        else {
+	            partial = null;
+	            segments.release(seg); // Delivered, so the segment can be reused
+	        }
+	    }
 
-		return seg.length;
+	    receiver.windowRead(); // Taking segments frees slots, which the sender may be waiting for
+
+		return copied;
+	}
+
+    /** Returns a stream reading from this connection. Reads are buffered, and each refill takes every segment
+     * that is ready at once
+     *
+     * @return an input stream
+     */
+	public InputStream getInputStream() {
+	    return new RDTInputStream(this);
+	}
+
+    /** Returns a stream writing to this connection. Writes are buffered until the buffer fills or the stream is
+     * flushed, and then sent as a run of full segments
+     *
+     * @return an output stream
+     */
+	public OutputStream getOutputStream() {
+	    return new RDTOutputStream(this);
 	}
 
     /** Closes the connection gracefully, using TCP teardown
      *
      */
 	public void close() {
+	    Metrics.unregister(metrics);
+	    setPathMtuProbing(false);
+	    sndBuf.stopTimers();
+
+	    if (rcvThread != null) {
+	        transport.close(); // The socket is this connection's alone, and its receiver thread stops with it
+	    }
+	    else if (listener != null) {
+	        listener.remove(receiver); // The socket is shared, so only stop routing the peer's segments here
+	    }
+
         // OPTIONAL: close the connection gracefully
 		// you can use TCP-style connection termination process
 
@@ -270,7 +764,7 @@ public class RDT {
 //        RDTSegment finSeg = new RDTSegment();
 //        finSeg.flags = FLAGS_FIN;
 //
-//        Utility.udp_send(finSeg, this.socket, this.dst_ip, this.dst_port, false);
+//        Utility.udp_send(finSeg, this.transport, this.dst, false);
 //
 //        System.out.println(System.currentTimeMillis() + ":" + ANSI_PURPLE + "Client is done" + ANSI_RESET);
 //        System.exit(0);
@@ -2,146 +2,548 @@
 
 package rdt;
 
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Semaphore;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static rdt.RDT.*;
-import static rdt.RDT.RTO;
-import static rdt.RDT.timer;
+import static rdt.RDTSegment.FLAGS_PROBE;
+import static rdt.RDT.segments;
 
 /** Represents a buffer used for storing segments received from the network. Used by both
  * the Receiver Thread and the RDT class for sending, receiving and delivering packets to and from the
  * client/server applications
  *
+ * The buffer is a lock-free single-producer/single-consumer ring. The producer fills slots and publishes them
+ * by advancing putIndex, and the consumer frees them by advancing takeIndex; each cursor is only ever written
+ * by one thread, with release stores and acquire loads, so a published slot is always seen fully written. In the
+ * send buffer the application thread produces and the receiver thread frees slots as acks slide base; in the
+ * receive buffer the receiver thread produces and the application thread consumes with getNext()
+ *
  * @author Chris Harris
  */
 class RDTBuffer {
+    private static final VarHandle PUT_INDEX;
+    private static final VarHandle TAKE_INDEX;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            PUT_INDEX = lookup.findVarHandle(RDTBuffer.class, "putIndex", int.class);
+            TAKE_INDEX = lookup.findVarHandle(RDTBuffer.class, "takeIndex", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     // Package-private access
-    RDTSegment[] buf;
-    int size;
-    int base;
-    int nextSeqNum;
-    Semaphore semMutex; // For mutual exclusion
-    Semaphore semFull;  // # of full slots
-    Semaphore semEmpty; // # of Empty slots
+    RDTSegment[] buf;   // Length is a power of two at least size, so slots are found by masking
+    int size;           // Capacity in segments
+    int mask;
+    volatile int base;       // Written by the receiver thread only
+    volatile int nextSeqNum; // Written by the application thread only (send buffer)
     boolean receivedFirst;
+    final ReentrantLock lock = new ReentrantLock(); // Waiting on it does not pin a virtual thread to its carrier
+    TimingWheel.Timeout timeout; // Go Back N window timer, guarded by lock
+    TimingWheel timer = RDT.timer; // Runs the retransmission timers, the EventLoop's own wheel if it has one
+    RTOEstimator rtt = new RTOEstimator(); // Retransmission timeout for segments in this (send) buffer
+    CongestionController cc = CongestionController.create(congestionControl); // Limits segments in flight
+    final Pacer pacer = new Pacer(this); // Spaces out the data segments of this (send) buffer
+    volatile int mss = MSS; // Largest body of a data segment cut from here on (send buffer), see RDT.setMaxSegmentSize()
+    volatile MtuProber prober; // Raises mss while path MTU probing is on, null otherwise
+    int peerWindow = Integer.MAX_VALUE; // Right edge of the receiver's window, from the last ack, guarded by lock
+    boolean peerWindowKnown = false;
 
-    RDTBuffer (int bufSize) {
-        buf = new RDTSegment[bufSize];
-
-        for (int i = 0; i < bufSize; i++) {
-            buf[i] = null;
-        }
+    private int putIndex;  // Slots published to the consumer, accessed through PUT_INDEX
+    private int takeIndex; // Slots freed by the consumer, accessed through TAKE_INDEX
+    private final boolean spin = (waitStrategy == WAIT_SPIN);
+    private volatile Thread producerWaiting; // Set while the producer is parked on a full ring
+    private volatile Thread consumerWaiting; // Set while the consumer is parked on an empty ring
+    private final Condition windowMoved = lock.newCondition(); // Signalled when base, cc or peerWindow change
+    volatile AsyncSender sender; // Told whenever the window moves, once the connection has used sendAsync()
+    ConnectionMetrics metrics;   // Counters of the connection, set on its send buffer
 
+    RDTBuffer (int bufSize) {
+        buf = new RDTSegment[Integer.highestOneBit(Math.max(bufSize - 1, 1)) << 1];
         size = bufSize;
+        mask = buf.length - 1;
         base = nextSeqNum = 0;
-        semMutex = new Semaphore(1, true);
-        semFull =  new Semaphore(0, true);
-        semEmpty = new Semaphore(bufSize, true);
         receivedFirst = false;
     }
 
-    /** Puts a segment in the next available slot in the buffer
+    /** Puts a segment in the next available slot in the buffer, waiting while the buffer is full. Producer only
      *
      * @param seg RDT segment to be put in the buffer
      */
     public void putNext(RDTSegment seg) {
+        int index = putIndex;
+
+        // Wait for an empty slot
+        if (index - (int) TAKE_INDEX.getAcquire(this) >= size) {
+            if (spin) {
+                while (index - (int) TAKE_INDEX.getAcquire(this) >= size) {
+                    Thread.onSpinWait();
+                }
+            }
+            else {
+                producerWaiting = Thread.currentThread();
+
+                while (index - (int) TAKE_INDEX.getVolatile(this) >= size) {
+                    LockSupport.park(this);
+                }
+
+                producerWaiting = null;
+            }
+        }
+
+        buf[index & mask] = seg;
+        publish(1);
+    }
+
+    /** Makes the next n slots, already written, visible to the consumer. Producer only
+     *
+     * @param n number of slots
+     */
+    void publish(int n) {
+        PUT_INDEX.setRelease(this, putIndex + n);
+
+        if (!spin) {
+            wake(consumerWaiting);
+        }
+    }
+
+    /** Returns the next n slots to the producer once the consumer is done with them. Consumer only
+     *
+     * @param n number of slots
+     */
+    void free(int n) {
+        TAKE_INDEX.setRelease(this, takeIndex + n);
+
+        if (!spin) {
+            wake(producerWaiting);
+        }
+    }
+
+    /** Moves base of this (send) buffer up to newBase, recycling every acknowledged segment it passes and
+     * handing the slots back to putNext(). Holding the lock keeps a retransmission timer from sending a segment
+     * while it is being recycled. Receiver thread only
+     *
+     * @param newBase the new base, no greater than nextSeqNum
+     */
+    void slide(int newBase) {
+        lock.lock();
+
         try {
-            semEmpty.acquire(); // Wait for an empty slot
-            semMutex.acquire(); // Acquire exclusive lock
+            int oldBase = base;
+
+            for (int seqNum = oldBase; seqNum < newBase; seqNum++) {
+                segments.release(buf[seqNum & mask]);
+                buf[seqNum & mask] = null;
+            }
+
+            base = newBase;
+            free(newBase - oldBase);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            buf[nextSeqNum % size] = seg;
+    /** Unparks a thread that may be waiting on the other cursor. The fence orders the cursor store above before
+     * the waiter is read, pairing with the waiter publishing itself before it re-reads the cursor
+     *
+     */
+    private static void wake(Thread waiting) {
+        VarHandle.fullFence();
 
-            semMutex.release(); // Release lock
-            semFull.release(); // Notify that one buffer is full
-        } catch(InterruptedException e) {
-            System.out.println("Buffer putNext(): " + e);
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
         }
     }
 
+    /** Returns the slot a sequence number is stored in
+     *
+     * @param seqNum sequence number
+     * @return the segment in that slot, which may belong to another sequence number or be null
+     */
+    RDTSegment slot(int seqNum) {
+        return buf[seqNum & mask];
+    }
+
     /** Puts a segment in the *right* slot based on seg.seqNum
      *
      * @param seg RDT segment to be put in the buffer
      */
     public void putSeqNum (RDTSegment seg) {
-        this.buf[seg.seqNum % size] = seg;
+        this.buf[seg.seqNum & mask] = seg;
     }
 
-    // Return the next in-order segment
+    /** Returns the next in-order segment, waiting while the buffer is empty. Consumer only
+     *
+     * @return the segment
+     */
     public RDTSegment getNext() {
-        RDTSegment seg = new RDTSegment();
+        int index = takeIndex;
 
-        try {
-            semFull.acquire();  // Wait for a slot to be filled
-            semMutex.acquire(); // Acquire exclusive lock
+        // Wait for a slot to be filled
+        if (index == (int) PUT_INDEX.getAcquire(this)) {
+            if (spin) {
+                while (index == (int) PUT_INDEX.getAcquire(this)) {
+                    Thread.onSpinWait();
+                }
+            }
+            else {
+                consumerWaiting = Thread.currentThread();
 
-            seg = buf[nextSeqNum++ % size];
+                while (index == (int) PUT_INDEX.getVolatile(this)) {
+                    LockSupport.park(this);
+                }
 
-            semMutex.release(); // Release lock
-            semEmpty.release(); // Notify that an empty slot is available
-        }
-        catch (InterruptedException e) {
-            System.out.println("Buffer getNext(): " + e);
+                consumerWaiting = null;
+            }
         }
 
-        if (seg == null) {
+        return take(index);
+    }
+
+    /** Returns the next in-order segment if one is ready, without waiting. Consumer only
+     *
+     * @return the segment, or null if the buffer is empty
+     */
+    RDTSegment pollNext() {
+        int index = takeIndex;
+
+        if (index == (int) PUT_INDEX.getAcquire(this)) {
             return null;
         }
 
+        return take(index);
+    }
+
+    /** Removes the published segment at the consumer's cursor and frees its slot. Consumer only
+     *
+     */
+    private RDTSegment take(int index) {
+        RDTSegment seg = buf[index & mask];
+        buf[index & mask] = null; // The caller owns the segment now, and may recycle it
+        free(1); // Notify that an empty slot is available
+
         return seg;
     }
 
-    /** Checks if a target sequence number has already been placed in the buffer
+    /** Blocks the sender until both the congestion window and the receiver's advertised window allow another
+     * segment in flight. The buffer size is still enforced separately by putNext(). While the receiver
+     * advertises a zero window and nothing is in flight, no ack would ever reopen it, so a probe is sent every
+     * RTO (backing off) to ask for the current window
+     *
+     * @param transport transport used for sending zero window probes
+     * @param dst address of the recipient
+     * @param connId connection ID stamped on the probes
+     */
+    void awaitWindow(UdpTransport transport, InetSocketAddress dst, int connId) {
+        long probeDelay = rtt.rto();
+        long probeAt = 0;
+
+        lock.lock();
+
+        try {
+            while (nextSeqNum - base >= cc.window() || nextSeqNum >= peerWindow) {
+                boolean zeroWindow = nextSeqNum >= peerWindow && base == nextSeqNum;
+
+                if (!zeroWindow) {
+                    probeAt = 0;
+                    windowMoved.await();
+                    continue;
+                }
+
+                long now = TimeUnit.NANOSECONDS.toMillis(clock.nanoTime());
+
+                if (probeAt == 0) {
+                    probeAt = now + probeDelay; // Persist timer starts when the window closes
+                }
+                else if (now >= probeAt) {
+                    sendProbe(transport, dst, connId);
+
+                    probeDelay = Math.min(RTOEstimator.MAX_RTO, probeDelay * 2);
+                    probeAt = now + probeDelay;
+                }
+
+                windowMoved.await(Math.max(1, probeAt - now), TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Buffer awaitWindow(): " + e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of segments published to the consumer but not yet taken
+     *
+     * @return the number of segments
+     */
+    int occupancy() {
+        return (int) PUT_INDEX.getAcquire(this) - (int) TAKE_INDEX.getAcquire(this);
+    }
+
+    /** Sends a zero window probe, asking the receiver for its current window
+     *
+     * @param transport transport used for sending the probe
+     * @param dst address of the recipient
+     * @param connId connection ID stamped on the probe
+     */
+    void sendProbe(UdpTransport transport, InetSocketAddress dst, int connId) {
+        RDTSegment probe = segments.acquire();
+        probe.seqNum = nextSeqNum;
+        probe.connId = connId;
+        probe.flags = FLAGS_PROBE;
+        Utility.udp_send(probe, transport, dst, false);
+        segments.release(probe);
+        metrics.windowProbes.increment();
+    }
+
+    /** Checks, without waiting, whether the congestion window, the receiver's advertised window and the buffer
+     * itself all have room for another segment
+     *
+     * @return a boolean value
+     */
+    boolean windowOpen() {
+        lock.lock();
+
+        try {
+            return nextSeqNum - base < cc.window() && nextSeqNum < peerWindow &&
+                    putIndex - (int) TAKE_INDEX.getAcquire(this) < size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Checks whether the receiver has closed its window with nothing in flight, so that only a probe can learn
+     * when it reopens
+     *
+     * @return a boolean value
+     */
+    boolean zeroWindow() {
+        lock.lock();
+
+        try {
+            return nextSeqNum >= peerWindow && base == nextSeqNum;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records the window advertised in an ack. Acks can be reordered, so the right edge only ever moves forward
+     *
+     * @param edge right edge of the receiver's window
+     */
+    void updatePeerWindow(int edge) {
+        lock.lock();
+
+        try {
+            if (peerWindowKnown && edge <= peerWindow) {
+                return;
+            }
+
+            peerWindow = edge;
+            peerWindowKnown = true;
+            windowMoved.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        notifySender();
+    }
+
+    /** Returns the right edge of this (receive) buffer's window: one past the highest sequence number there is
+     * room for, given the segments still waiting to be taken by getNext()
+     *
+     * @return a sequence number
+     */
+    int windowEdge() {
+        return (int) TAKE_INDEX.getAcquire(this) + size;
+    }
+
+    /** Wakes a sender blocked in awaitWindow(), or the asynchronous sender, after base has moved or the congestion
+     * window has changed
+     *
+     */
+    void windowChanged() {
+        lock.lock();
+
+        try {
+            windowMoved.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        notifySender();
+    }
+
+    /** Lets the asynchronous sender, if any, use the room that has opened up. Called without holding the lock,
+     * since the sender may go on to transmit
+     *
+     */
+    private void notifySender() {
+        AsyncSender s = sender;
+
+        if (s != null) {
+            s.windowMoved();
+        }
+    }
+
+    /** Blocks until base has caught up with nextSeqNum, i.e. every segment in this (send) buffer has been acked
+     *
+     */
+    void awaitAcked() {
+        lock.lock();
+
+        try {
+            while (base != nextSeqNum) {
+                windowMoved.await();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Buffer awaitAcked(): " + e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Replaces the congestion controller, e.g. to select a different algorithm for this connection
+     *
+     * @param controller the new controller
+     */
+    void setCongestionController(CongestionController controller) {
+        lock.lock();
+
+        try {
+            cc = controller;
+            windowMoved.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        notifySender();
+    }
+
+    /** Checks if a target sequence number has already been placed in the buffer. A segment can only ever be
+     * stored in the slot for its own sequence number, so only that slot is checked
      *
      * @param target value to be found
      * @return whether or not the value was found
      */
     public boolean contains(int target) {
-        for (int i = 0; i < this.size; i++) {
-            if (this.buf[i] != null && this.buf[i].seqNum == target) {
-                return true;
-            }
-        }
+        RDTSegment seg = this.buf[target & mask];
 
-        return false;
+        return (seg != null && seg.seqNum == target);
     }
 
     /** Handles timeouts for segments in Go Back N. In the event of a timeout, all unacknowledged packets
-     * in the window are resent using udp_send()
-     *
-     * @param socket datagram socket used for transmission
-     * @param dst_ip IP address of the recipient
-     * @param dst_port port number of the recipient
-     */
-    public void runTimerTask(DatagramSocket socket, InetAddress dst_ip, int dst_port) {
-        TimerTask task = new TimerTask() {
-            @Override
-            public void run() {
-                System.out.println(System.currentTimeMillis() + ":" + ANSI_CYAN + " RESTART TIMER: " + ANSI_RESET + "Resending all un-acked packets starting from base=" + base);
-
-                if (size > 1) {
-                    for (int i = (base % size); i < (nextSeqNum % size); i++) {
-                        Utility.udp_send(buf[i], socket, dst_ip, dst_port, true);
-                    }
-                }
-                else {
-                    Utility.udp_send(buf[0], socket, dst_ip, dst_port, true);
-                }
+     * in the window are resent using udp_send() and the RTO is doubled
+     *
+     * @param transport transport used for transmission
+     * @param dst address of the recipient
+     */
+    void runTimerTask(UdpTransport transport, InetSocketAddress dst) {
+        Runnable task = () -> {
+            EventLog.info(EventSink.RESTART_TIMER, base, 0, 0, 0);
+            metrics.timeouts.increment();
 
+            resendWindow(transport, dst);
+            cc.onTimeout();
+
+            MtuProber p = prober;
+
+            if (p != null) {
+                p.timedOut();
+            }
+
+            // Back off, and keep the longer timeout until an ack for a fresh segment gives a new RTT sample
+            lock.lock();
+
+            try {
+                rtt.backoff();
+
+                if (timeout != null) {
+                    timeout.period = rtt.rto();
+                }
+            } finally {
+                lock.unlock();
             }
         };
 
-        timer = new Timer();
-        timer.schedule(task, RTO, RTO);
+        metrics.timerRestarts.increment();
+        lock.lock();
+
+        try {
+            cancelTimer();
+            timeout = timer.schedule(task, rtt.rto(), rtt.rto());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Resends every unacknowledged segment in this (send) buffer, as Go Back N does on a timeout or a fast
+     * retransmit. Sequence numbers are walked rather than slots, so that a window wrapping around the end of buf
+     * is resent too, and the lock keeps slide() from recycling the segments meanwhile
+     *
+     * @param transport transport used for transmission
+     * @param dst address of the recipient
+     * @return number of segments resent
+     */
+    int resendWindow(UdpTransport transport, InetSocketAddress dst) {
+        lock.lock();
+
+        try {
+            for (int seqNum = base; seqNum < nextSeqNum; seqNum++) {
+                slot(seqNum).retransmitted = true;
+                metrics.resent(Utility.udp_send(slot(seqNum), transport, dst, true, pacer.delay(slot(seqNum))));
+            }
+
+            return nextSeqNum - base;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops the Go Back N window timer, if it is running
+     *
+     */
+    void cancelTimer() {
+        lock.lock();
+
+        try {
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops every retransmission timer of this (send) buffer, the Go Back N window timer and the Selective Repeat
+     * segment timers, once the connection is closed
+     *
+     */
+    void stopTimers() {
+        cancelTimer();
+
+        for (int i = base; i != nextSeqNum; i++) {
+            RDTSegment seg = slot(i);
+
+            if (seg != null) {
+                seg.cancelTimer();
+            }
+        }
     }
 
     // For debugging
     public void dump() {
         System.out.println("Send Buffer: ");
-        for (int i = 0; i < this.size; i++) {
+        for (int i = 0; i < this.buf.length; i++) {
             if (this.buf[i] != null) {
                 System.out.print("{");
                 this.buf[i].dump();
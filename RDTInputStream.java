@@ -0,0 +1,80 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Reads the data delivered by an RDT connection as a stream. Each refill of the internal buffer takes as many
+ * in-order segments as are ready, and reads at least as large as the buffer bypass it. RDT has no teardown
+ * yet, so the stream never reports end of stream, and read() waits until data arrives
+ *
+ * @author Chris Harris
+ */
+class RDTInputStream extends InputStream {
+    static final int BUFFER_SIZE = 8192;
+
+    private RDT rdt;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;    // Next byte to be read from buf
+    private int count = 0;  // Number of valid bytes in buf
+
+    RDTInputStream(RDT rdt_) {
+        rdt = rdt_;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == count) {
+            fill();
+        }
+
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+
+        // Serve what is already buffered first, without waiting for more
+        if (pos < count) {
+            int n = Math.min(len, count - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+
+            return n;
+        }
+
+        // Large reads go straight to the connection
+        if (len >= buf.length) {
+            return rdt.receive(b, off, len);
+        }
+
+        fill();
+
+        int n = Math.min(len, count);
+        System.arraycopy(buf, 0, b, off, n);
+        pos = n;
+
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return count - pos;
+    }
+
+    /** Refills the empty buffer, waiting until at least one byte has been received
+     *
+     */
+    private void fill() {
+        pos = 0;
+        count = rdt.receive(buf, 0, buf.length);
+    }
+} // end RDTInputStream class
@@ -0,0 +1,121 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** Accepts connections from many peers on a single UDP port. One thread reads the socket for every connection
+ * and demultiplexes segments by the sender's address and the connection ID in the header. The first data
+ * segment from an unknown peer opens a new connection, which accept() hands to the application
+ *
+ * @author Chris Harris
+ */
+public class RDTListener {
+    static final int BACKLOG = 1024; // Connections opened but not yet accepted, beyond which new peers are ignored
+
+    private UdpTransport transport;
+    private ReceiverThread rcvThread;
+    private EventLoop loop; // Runs the listener and its connections, or null if it has its own thread
+    private int sndBufSize, rcvBufSize;
+    private LinkedBlockingQueue<RDT> pending = new LinkedBlockingQueue<>(BACKLOG);
+
+    /**
+     *
+     * @param local_port port number the listener is bound to
+     * @param sndBufSize_ size of the send buffer of each connection
+     * @param rcvBufSize_ size of the receive buffer of each connection
+     */
+    RDTListener (int local_port, int sndBufSize_, int rcvBufSize_) {
+        this(local_port, sndBufSize_, rcvBufSize_, 0);
+    }
+
+    /** Creates a listener whose connections are processed by a number of worker threads. The socket is still
+     * read by one thread, which only decodes each datagram and passes it to the shard its connection hashes to
+     *
+     * @param local_port port number the listener is bound to
+     * @param sndBufSize_ size of the send buffer of each connection
+     * @param rcvBufSize_ size of the receive buffer of each connection
+     * @param shards number of worker threads, e.g. the number of cores, or 0 to process on the reading thread
+     */
+    RDTListener (int local_port, int sndBufSize_, int rcvBufSize_, int shards) {
+        sndBufSize = sndBufSize_;
+        rcvBufSize = rcvBufSize_;
+
+        try {
+            transport = new UdpTransport(local_port);
+        } catch (IOException e) {
+            System.out.println("RDTListener constructor: " + e);
+        }
+
+        rcvThread = new ReceiverThread(transport, this, shards);
+        loop = RDT.nextEventLoop();
+
+        if (loop != null) {
+            loop.register(transport, rcvThread);
+        }
+        else {
+            RDT.execute(rcvThread, "rdt-listener-" + local_port);
+        }
+    }
+
+    /** Waits for a new peer to connect
+     *
+     * @return the connection, or null if interrupted
+     */
+    public RDT accept() {
+        try {
+            return pending.take();
+        } catch (InterruptedException e) {
+            System.out.println("RDTListener accept(): " + e);
+            return null;
+        }
+    }
+
+    /** Opens a connection for a new peer and queues it for accept(). Called on the listener's thread
+     *
+     * @param src address of the peer
+     * @param connId connection ID chosen by the peer
+     * @return the new connection's Receiver, or null if too many connections are waiting to be accepted
+     */
+    Receiver open(InetSocketAddress src, int connId) {
+        if (pending.remainingCapacity() == 0) {
+            return null; // Checked first, since a new connection registers its metrics
+        }
+
+        RDT rdt = new RDT(transport, src, connId, sndBufSize, rcvBufSize);
+        rdt.listener = this;
+
+        if (loop != null) {
+            rdt.sndBuf.timer = loop.timer;
+        }
+
+        if (!pending.offer(rdt)) {
+            Metrics.unregister(rdt.sndBuf.metrics);
+            return null;
+        }
+
+        return rdt.receiver();
+    }
+
+    /** Forgets a connection the application has closed, so that a later segment from the same peer and
+     * connection ID opens a new one
+     *
+     * @param r Receiver of the closed connection
+     */
+    void remove(Receiver r) {
+        rcvThread.remove(r);
+    }
+
+    /** Stops listening. Connections already opened stop receiving too, since they share the socket
+     *
+     */
+    public void close() {
+        transport.close();
+
+        if (loop != null) {
+            rcvThread.shutdown(); // No thread of its own to notice the closed selector and stop the shards
+        }
+    }
+} // end RDTListener class
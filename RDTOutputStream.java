@@ -0,0 +1,73 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Writes a stream of bytes over an RDT connection. Small writes are collected in an internal buffer, which is
+ * sent as a run of full segments once it fills or the stream is flushed; writes at least as large as the buffer
+ * are sent straight away. flush() only hands the data to the connection; RDT.flush() waits for it to be acked
+ *
+ * @author Chris Harris
+ */
+class RDTOutputStream extends OutputStream {
+    static final int BUFFER_SIZE = 8192;
+
+    private RDT rdt;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int count = 0; // Number of bytes waiting in buf
+
+    RDTOutputStream(RDT rdt_) {
+        rdt = rdt_;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length) {
+            flushBuffer();
+        }
+
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (len >= buf.length) {
+            flushBuffer();
+            rdt.send(b, off, len);
+            return;
+        }
+
+        if (len > buf.length - count) {
+            flushBuffer();
+        }
+
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+    }
+
+    /** Sends whatever is waiting in the buffer
+     *
+     */
+    private void flushBuffer() {
+        if (count > 0) {
+            rdt.send(buf, 0, count);
+            count = 0;
+        }
+    }
+} // end RDTOutputStream class
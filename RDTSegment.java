@@ -2,7 +2,8 @@
 
 package rdt;
 
-import java.util.Timer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /** Represents a UDP segment with added Reliable Data Transfer protocol, i.e. TCP over UDP
  *
@@ -10,28 +11,42 @@ import java.util.Timer;
  */
 public class RDTSegment {
 	private byte[] data;
+	private ByteBuffer body; // Slice of the application's buffer, used instead of data when set (zero-copy send)
 
 	// Package-private access
-    Timer timer = new Timer();
+    volatile TimingWheel.Timeout timer; // Retransmission timer, only scheduled for data segments in Selective Repeat
     TimeoutHandler timeoutHandler;
+    long sentAt;            // RDT.clock.nanoTime() of the first transmission, used for RTT samples
+    long receivedAt;        // RDT.clock.nanoTime() when a received data segment was stored, used for delivery latency
+    boolean retransmitted;  // Karn's rule: acks for retransmitted segments are never sampled
+    boolean acked;          // Set by the sender's receiver thread once an ack covers this segment
+    boolean pooled;         // Idle in the SegmentPool, guarded by the pool
     int seqNum;
     int ackNum;
     int flags;
     int checksum;
-    int rcvWin;
-    int length;  // Number of data bytes (<= MSS)
+    int rcvWin;  // In acks: right edge of the receiver's window, i.e. one past the highest seqNum it has room for
+    int length;  // Number of data bytes (<= the connection's MSS)
+    int connId;  // Chosen by the connecting side, so that a listener can tell connections from one address apart
     static final int SEQ_NUM_OFFSET = 0;
     static final int ACK_NUM_OFFSET = 4;
     static final int FLAGS_OFFSET = 8;
     static final int CHECKSUM_OFFSET = 12;
     static final int RCV_WIN_OFFSET = 16;
     static final int LENGTH_OFFSET = 20;
-    static final int HDR_SIZE = 24;
+    static final int CONN_ID_OFFSET = 24;
+    static final int HDR_SIZE = 28;
+    static final int SACK_BLOCK_SIZE = 8;  // Start and end (exclusive) sequence numbers of a range
+    static final int MAX_SACK_BLOCKS = 4;  // SACK blocks carried in the body of an ack
     static final int FLAGS_ACK = 1;
     static final int FLAGS_ACKED = 2;
     static final int FLAGS_FIN = 3;
     static final int FLAGS_FIN_ACK = 4;
     static final int FLAGS_FIN_ACKED = 5;
+    static final int FLAGS_PROBE = 6;  // Zero window probe, answered with an ack carrying the current window
+    static final int FLAGS_MTU_PROBE = 7;     // Path MTU probe: seqNum identifies it, and the body is padding
+    static final int FLAGS_MTU_PROBE_ACK = 8; // Answer to a path MTU probe: seqNum as probed, ackNum the size received
+    static final int FLAGS_CRC32C = 0x100; // Bit set on the wire when the checksum is a CRC32C of the datagram
 
 	RDTSegment() {
 		seqNum = 0;
@@ -43,6 +58,48 @@ public class RDTSegment {
         data = new byte[RDT.MSS];
 	}
 
+    /** Clears every field so that a recycled segment can be reused. The data array is kept
+     *
+     */
+    void reset() {
+        timer = null;
+        timeoutHandler = null;
+        sentAt = 0;
+        receivedAt = 0;
+        retransmitted = false;
+        acked = false;
+        seqNum = 0;
+        ackNum = 0;
+        flags = 0;
+        checksum = 0;
+        rcvWin = 0;
+        length = 0;
+        connId = 0;
+        body = null;
+    }
+
+    /** Returns the size of the segment's data array, which may be more than the body it holds
+     *
+     * @return size in bytes
+     */
+    int capacity() {
+        return data.length;
+    }
+
+    /** Returns the segment's data array, replacing it first if it cannot hold the given number of bytes, so
+     * that a body can be copied straight in
+     *
+     * @param capacity number of bytes needed
+     * @return the data array, at least capacity bytes long
+     */
+    byte[] buffer(int capacity) {
+        if (data.length < capacity) {
+            data = new byte[Math.max(capacity, RDT.MSS)];
+        }
+
+        return data;
+    }
+
     /** Sets the data for a segment
      *
      * @param data the byte array to be set
@@ -51,6 +108,32 @@ public class RDTSegment {
 	    this.data = data;
     }
 
+    /** Makes a slice of an application buffer the body of this segment, without copying it
+     *
+     * @param slice buffer holding exactly the body between its position and limit
+     */
+    void setBody(ByteBuffer slice) {
+        body = slice;
+        length = slice.remaining();
+    }
+
+    /** Returns the slice set by setBody()
+     *
+     * @return a buffer, or null if the body is held in the data array
+     */
+    ByteBuffer getBody() {
+        return body;
+    }
+
+    /** Returns one byte of the body, wherever it is held
+     *
+     * @param i index within the body
+     * @return the byte
+     */
+    byte dataAt(int i) {
+        return (body != null) ? body.get(body.position() + i) : data[i];
+    }
+
     /** Returns the data from a segment
      *
      * @return a byte array
@@ -59,6 +142,17 @@ public class RDTSegment {
 	    return this.data;
     }
 
+    /** Cancels the retransmission timer for this segment, if one has been scheduled
+     *
+     */
+    void cancelTimer() {
+        TimingWheel.Timeout t = timer;
+
+        if (t != null) {
+            t.cancel();
+        }
+    }
+
     /** Checks whether or not this is an ack packet
      *
      * @return a boolean value
@@ -67,21 +161,81 @@ public class RDTSegment {
 		return (flags == FLAGS_ACK);
 	}
 
-    /** Checks whether or not this segment contains a data body
+    /** Checks whether or not this segment contains a data body. The body of an ack holds SACK blocks instead, and
+     * the body of a path MTU probe is padding
      *
      * @return a boolean value
      */
 	public boolean containsData() {
-		return (length > 0);
+		return (length > 0 && !containsAck() && !containsMtuProbe());
 	}
 
+    /** Appends a SACK block to the body of an ack
+     *
+     * @param start first sequence number in the range
+     * @param end one past the last sequence number in the range
+     */
+    void addSackBlock(int start, int end) {
+        if (data.length < length + SACK_BLOCK_SIZE) {
+            data = Arrays.copyOf(data, MAX_SACK_BLOCKS * SACK_BLOCK_SIZE);
+        }
+
+        Utility.intToByte(start, data, length);
+        Utility.intToByte(end, data, length + 4);
+        length += SACK_BLOCK_SIZE;
+    }
+
+    /** Returns the number of SACK blocks carried by this segment
+     *
+     * @return 0 unless this is an ack with a body
+     */
+    int sackBlocks() {
+        return containsAck() ? length / SACK_BLOCK_SIZE : 0;
+    }
+
+    /** Returns the first sequence number of a SACK block
+     *
+     * @param i index of the block
+     * @return a sequence number
+     */
+    int sackStart(int i) {
+        return Utility.byteToInt(data, i * SACK_BLOCK_SIZE);
+    }
+
+    /** Returns one past the last sequence number of a SACK block
+     *
+     * @param i index of the block
+     * @return a sequence number
+     */
+    int sackEnd(int i) {
+        return Utility.byteToInt(data, i * SACK_BLOCK_SIZE + 4);
+    }
+
     /** Checks whether or not this is a FIN packet
      *
      * @return a boolean value
      */
-	public boolean containsFin() { return (flags >= FLAGS_FIN); }
+	public boolean containsFin() { return (flags >= FLAGS_FIN && flags <= FLAGS_FIN_ACKED); }
+
+    /** Checks whether or not this is a zero window probe
+     *
+     * @return a boolean value
+     */
+	public boolean containsProbe() { return (flags == FLAGS_PROBE); }
+
+    /** Checks whether or not this is a path MTU probe
+     *
+     * @return a boolean value
+     */
+	boolean containsMtuProbe() { return (flags == FLAGS_MTU_PROBE); }
+
+    /** Checks whether or not this answers a path MTU probe
+     *
+     * @return a boolean value
+     */
+	boolean containsMtuProbeAck() { return (flags == FLAGS_MTU_PROBE_ACK); }
 
-    /** Returns the checksum for this packet
+    /** Returns the 8-bit checksum for this packet, used when RDT.checksumType is CHECKSUM_SUM8
      *
      * @return an integer representation of the checksum value
      */
@@ -104,13 +258,17 @@ public class RDTSegment {
                 ((rcvWin & 0x00ff0000) >> 16) +
                 ((rcvWin & 0x0000ff00) >> 8) +
                 (rcvWin & 0x000000ff)));
+        csum += (0xff & (((connId & 0xff000000) >> 24) +
+                ((connId & 0x00ff0000) >> 16) +
+                ((connId & 0x0000ff00) >> 8) +
+                (connId & 0x000000ff)));
         csum += (0xff & (((length & 0xff000000) >> 24) +
                 ((length & 0x00ff0000) >> 16) +
                 ((length & 0x0000ff00) >> 8) +
                 (length & 0x000000ff)));
 
         for (int i = 0; i < length; i++) {
-            csum += (0xff & this.data[i]);
+            csum += (0xff & dataAt(i));
         }
 
         return (0xff & csum);
@@ -134,6 +292,7 @@ public class RDTSegment {
 		System.out.print("checksum:" + checksum + " ");
 		System.out.print("rcvWin:" + rcvWin + " ");
 		System.out.print("length:" + length + " ");
+		System.out.print("connId:" + connId + " ");
 	}
 
     /** Prints the body of the packet
@@ -142,7 +301,7 @@ public class RDTSegment {
 	public void printData() {
 		System.out.print("Data:[");
 		for (int i = 0; i < length; i++) {
-            System.out.print(this.data[i]);
+            System.out.print(dataAt(i));
 
             if (i > 10) {
                 System.out.print("...");
@@ -0,0 +1,73 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.util.concurrent.TimeUnit;
+
+/** Computes the retransmission timeout for one connection from measured round trip times, following
+ * RFC 6298: a smoothed RTT (SRTT) and RTT variation (RTTVAR) are updated from each sample, and
+ * RTO = SRTT + max(G, 4 * RTTVAR). Callers follow Karn's rule and only sample segments that were never
+ * retransmitted, so a backed-off RTO is kept until a segment gets through on its first attempt
+ *
+ * @author Chris Harris
+ */
+class RTOEstimator {
+    static final int MIN_RTO = 2;       // Lower bound on the RTO in msec
+    static final int MAX_RTO = 60000;   // Upper bound on the RTO in msec
+    static final int GRANULARITY = TimingWheel.DEFAULT_TICK; // Clock granularity G in msec
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+
+    private double srtt;    // msec
+    private double rttvar;  // msec
+    private boolean measured = false;
+    private long rto = RDT.RTO; // Initial RTO until the first sample arrives
+
+    /** Feeds a round trip time measured on a segment that was not retransmitted
+     *
+     * @param rttNanos time from first transmission to acknowledgement, in nanoseconds
+     */
+    synchronized void sample(long rttNanos) {
+        double r = (double) rttNanos / TimeUnit.MILLISECONDS.toNanos(1);
+
+        if (!measured) {
+            srtt = r;
+            rttvar = r / 2;
+            measured = true;
+        }
+        else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - r);
+            srtt = (1 - ALPHA) * srtt + ALPHA * r;
+        }
+
+        long value = (long) Math.ceil(srtt + Math.max(GRANULARITY, K * rttvar));
+
+        // Never time out before the peer's delayed ack timer could have fired
+        rto = Math.min(MAX_RTO, Math.max(Math.max(MIN_RTO, RDT.ackDelay + GRANULARITY), value));
+    }
+
+    /** Doubles the RTO after a retransmission timeout
+     *
+     */
+    synchronized void backoff() {
+        rto = Math.min(MAX_RTO, rto * 2);
+    }
+
+    /** Returns the current retransmission timeout
+     *
+     * @return the RTO in msec
+     */
+    synchronized long rto() {
+        return rto;
+    }
+
+    /** Returns the smoothed round trip time
+     *
+     * @return SRTT in msec, or 0 before the first sample
+     */
+    synchronized double srtt() {
+        return srtt;
+    }
+} // end RTOEstimator class
@@ -0,0 +1,607 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static rdt.RDT.*;
+import static rdt.RDTSegment.FLAGS_ACK;
+import static rdt.RDTSegment.FLAGS_MTU_PROBE_ACK;
+import static rdt.RDTSegment.HDR_SIZE;
+import static rdt.RDTSegment.MAX_SACK_BLOCKS;
+
+/** Handles the segments received for one connection, and responds appropriately by either acking the packets,
+ * or delivering them to the upper layer. Contains a buffer exclusively for sending packets, and another buffer
+ * exclusively for receiving packets. A Receiver does no I/O of its own: the thread reading the socket decodes
+ * each datagram and hands it to the Receiver of the connection it belongs to, directly or through a Shard
+ *
+ * @author Chris Harris
+ */
+class Receiver {
+    private RDTBuffer rcvBuf, sndBuf;
+    private UdpTransport transport;
+    final InetSocketAddress dst;
+    final int connId;
+    private int expectedSeqNum = 0;
+    private int lastRecvdSeqNum = 0;
+    private volatile int advertisedEdge = 0; // Right edge of the receive window sent in the last ack
+    private int ackPending = 0;    // In-order segments received since the last ack was sent
+    private int ackRecent = -1;    // Sequence number of the newest of those segments
+    private long ackDeadline = 0;  // clock.nanoTime() by which the delayed ack must go out, 0 if none is pending
+    boolean flushQueued = false;   // Whether the ReceiverGroup running this Receiver has it in its list to flush
+    Shard shard;                   // Worker thread this connection is pinned to, or null to run on the reading thread
+    volatile DeliveryHandler handler; // Takes in-order data straight from the receive buffer, instead of receive()
+    volatile ReceiverGroup group;  // Group of the thread that owns this Receiver, once it has handled a segment
+    volatile boolean windowPosted = false; // A window update check is queued on that thread
+    volatile boolean closed = false; // The application has closed the connection, so its segments are dropped
+
+    private int dupAcks = 0;       // Duplicate acks in a row for base - 1 (Go Back N)
+    private int fastRetransmitBase = -1; // Base when the window was last fast retransmitted (Go Back N)
+    private int sackRecover = -1;        // Highest seqNum outstanding when the last SACK loss episode began (SR)
+
+    /**
+     *
+     * @param rcv_buf buffer for received data
+     * @param snd_buf buffer for data waiting to be acked
+     * @param t transport acks are sent through
+     * @param dst_ address of the peer
+     * @param connId_ connection ID stamped on every ack
+     */
+    Receiver (RDTBuffer rcv_buf, RDTBuffer snd_buf, UdpTransport t, InetSocketAddress dst_, int connId_) {
+        rcvBuf = rcv_buf;
+        sndBuf = snd_buf;
+        transport = t;
+        dst = dst_;
+        connId = connId_;
+    }
+
+    /** Handles one segment: acks are applied to the send buffer, and data is placed in the receive buffer
+     *
+     * @param seg segment decoded from the network
+     * @return whether or not the segment was placed in the receive buffer, which then owns it
+     */
+    boolean process(RDTSegment seg) {
+        // Path MTU probes sit outside the sequence space, so both protocols handle them the same way
+        if (seg.containsMtuProbe()) {
+            answerMtuProbe(seg);
+            return false;
+        }
+
+        if (seg.containsMtuProbeAck()) {
+            MtuProber prober = sndBuf.prober;
+
+            if (prober != null) {
+                prober.acked(seg.seqNum, seg.ackNum);
+            }
+
+            return false;
+        }
+
+        /*------------------------------------------------------------------------
+
+                                        GO-BACK-N
+
+        ------------------------------------------------------------------------*/
+        if (protocol == GBN) {
+            if (seg.containsFin()) {
+                EventLog.info(EventSink.RECEIVED_FIN, 0, 0, 0, 0);
+            }
+
+            if (seg.containsProbe()) {
+                windowUpdate(); // The sender is waiting for our window to reopen
+            }
+
+            if (seg.containsAck()) {
+                int edge = sndBuf.peerWindow;
+                sndBuf.updatePeerWindow(seg.rcvWin);
+                sndBuf.metrics.acksReceived.increment();
+                boolean windowUpdate = sndBuf.peerWindow != edge;
+
+                // AckNum = -1 indicates that the receiver has not received the first expected sequence number (i.e. 0)
+                if (seg.ackNum == -1) {
+                    EventLog.debug(EventSink.RECEIVED_ACK, seg.ackNum, 0, 0, 0);
+                    duplicateAck(seg.ackNum, windowUpdate);
+                    return false;
+                }
+
+                if (seg.ackNum >= sndBuf.base) {
+                    sampleRtt(sndBuf.slot(seg.ackNum), seg.ackNum);
+                }
+
+                // Mark the buffer segment with matching sequence number as acknowledged
+                if (seg.ackNum >= sndBuf.base) {
+                    sndBuf.slot(seg.ackNum).acked = true;
+                }
+
+                int oldBase = sndBuf.base;
+
+                EventLog.debug(EventSink.RECEIVED_ACK, seg.ackNum, 0, 0, 0);
+
+                // Acks are cumulative, so check how far the window is sliding and release that many empty slots
+                int numSlots = Math.min(seg.ackNum + 1, sndBuf.nextSeqNum) - sndBuf.base;
+
+                if (numSlots > 0) {
+                    sndBuf.slide(sndBuf.base + numSlots); // Recycles the acked segments, so putNext() can take more data
+                }
+
+                // Let the congestion controller grow the window, and wake the sender if it was waiting on it
+                if (sndBuf.base > oldBase) {
+                    dupAcks = 0;
+                    sndBuf.cc.onAck(sndBuf.base - oldBase, sndBuf.base - 1);
+                    sndBuf.windowChanged();
+                }
+                else {
+                    sndBuf.metrics.duplicateAcks.increment();
+                    duplicateAck(seg.ackNum, windowUpdate);
+                }
+
+                if (sndBuf.base == sndBuf.nextSeqNum) { // All packets in the pipeline have been acked, so stop the timer
+                    sndBuf.cancelTimer();
+                    EventLog.debug(EventSink.TIMER_CANCELLED, 0, 0, 0, 0);
+                }
+                else if (sndBuf.base > oldBase) {
+                    // New data is being acked, but there are still unacknowledged packets in the pipeline, so restart
+                    // the timer. Duplicates leave it running, or a stream of them would hold off the timeout forever
+                    sndBuf.runTimerTask(transport, dst);
+                }
+            }
+
+            if (seg.containsData()) {
+                sndBuf.metrics.segmentsReceived.increment();
+
+                // Ensure that segment received is the next in-order segment, and that there is room for it
+                if (seg.seqNum == expectedSeqNum && seg.seqNum < rcvBuf.windowEdge()) {
+                    seg.receivedAt = clock.nanoTime();
+                    expectedSeqNum++;
+                    lastRecvdSeqNum = seg.seqNum;
+                    rcvBuf.putNext(seg);
+                    rcvBuf.receivedFirst = true;
+                    deferAck(seg.seqNum);
+                    deliverToHandler();
+                    return true;
+                }
+                else {
+                    // Drop the packet (implicitly) and immediately ack the last received packet
+                    EventLog.info(EventSink.OUT_OF_ORDER, seg.seqNum, 0, 0, 0);
+
+                    if (seg.seqNum < expectedSeqNum) {
+                        sndBuf.metrics.duplicateSegments.increment();
+                    }
+                    else {
+                        sndBuf.metrics.outOfOrder.increment();
+                    }
+
+                    ackNow(true);
+                }
+            }
+        }
+
+        /*------------------------------------------------------------------------
+
+                                  SELECTIVE REPEAT
+
+        ------------------------------------------------------------------------*/
+        if (protocol == SR) {
+            if (seg.containsProbe()) {
+                windowUpdate(); // The sender is waiting for our window to reopen
+            }
+
+            if (seg.containsAck()) {
+                sndBuf.updatePeerWindow(seg.rcvWin);
+                EventLog.debug(EventSink.RECEIVED_ACK, seg.ackNum, seg.sackBlocks(), 0, 0);
+                sndBuf.metrics.acksReceived.increment();
+
+                int newlyAcked = 0;
+
+                // Everything up to ackNum has arrived, as has every range listed in the SACK blocks
+                newlyAcked += markAcked(sndBuf.base, seg.ackNum + 1);
+
+                for (int i = 0; i < seg.sackBlocks(); i++) {
+                    newlyAcked += markAcked(seg.sackStart(i), seg.sackEnd(i));
+                }
+
+                // Slide base past every contiguous acknowledged segment, and notify that that many empty
+                // slots are available (walk sequence numbers rather than slots, so that the check wraps)
+                int oldBase = sndBuf.base;
+                int newBase = oldBase;
+
+                while (newBase < sndBuf.nextSeqNum) {
+                    RDTSegment next = sndBuf.slot(newBase);
+
+                    if (next != null && next.acked) {
+                        newBase++;
+                    }
+                    else {
+                        break;
+                    }
+                }
+
+                if (newBase > oldBase) {
+                    sndBuf.slide(newBase); // Recycles the acked segments, so putNext() can take more data
+                }
+
+                if (newlyAcked > 0) {
+                    retransmitHoles();
+                    sndBuf.cc.onAck(newlyAcked, sndBuf.base - 1);
+                    sndBuf.windowChanged();
+                }
+                else {
+                    sndBuf.metrics.duplicateAcks.increment();
+                }
+            }
+
+            if (seg.containsData()) {
+                EventLog.debug(EventSink.RECEIVED_SEGMENT, seg.seqNum, 0, 0, 0);
+                sndBuf.metrics.segmentsReceived.increment();
+
+                // Segments beyond the advertised window are dropped, and anything below base is a duplicate whose ack
+                // was lost. Either way the ack just repeats what has been received so far
+                if (seg.seqNum < rcvBuf.base || seg.seqNum >= rcvBuf.windowEdge()) {
+                    if (seg.seqNum < rcvBuf.base) {
+                        sndBuf.metrics.duplicateSegments.increment();
+                    }
+
+                    ackNow(true);
+                    return false;
+                }
+
+                // Put the segment in the correct slot in the receive buffer, unless a copy is already held there
+                boolean stored = !rcvBuf.contains(seg.seqNum);
+
+                if (stored) {
+                    seg.receivedAt = clock.nanoTime();
+                    rcvBuf.putSeqNum(seg);
+
+                    if (seg.seqNum != rcvBuf.base) {
+                        sndBuf.metrics.outOfOrder.increment();
+                    }
+                }
+                else {
+                    sndBuf.metrics.duplicateSegments.increment();
+                }
+
+                // If sequence number = base, deliver it (and any contiguous packets) to the upper layer
+                int numToDeliver = 0;
+
+                if (seg.seqNum == rcvBuf.base) {
+                    numToDeliver = 1;
+
+                    int next = seg.seqNum;
+
+                    while (next + 1 < rcvBuf.windowEdge() && rcvBuf.contains(++next)) {
+                        numToDeliver++;
+                    }
+
+                    rcvBuf.base += numToDeliver; // Move base up by N slots
+
+                    // Publish the N slots, so that getNext() knows to deliver them to the upper layer
+                    rcvBuf.publish(numToDeliver);
+                    deliverToHandler();
+                }
+
+                // An in-order segment can wait for the next ack, but one that is out of order or fills a gap is acked
+                // straight away, so the sender learns about the hole (or its repair) as soon as possible
+                if (numToDeliver == 1) {
+                    deferAck(seg.seqNum);
+                }
+                else {
+                    ackRecent = seg.seqNum;
+                    ackNow(false);
+                }
+
+                return stored;
+            }
+        }
+
+        return false;
+    }
+
+    /** Passes every segment waiting in the receive buffer to the delivery handler, if one is set, and recycles it.
+     * This thread then acts as the buffer's consumer as well as its producer
+     *
+     */
+    private void deliverToHandler() {
+        DeliveryHandler h = handler;
+
+        if (h == null) {
+            return;
+        }
+
+        RDTSegment s;
+
+        while ((s = rcvBuf.pollNext()) != null) {
+            try {
+                h.deliver(s.getData(), 0, s.length);
+            } catch (RuntimeException e) {
+                System.out.println("Receiver deliver(): " + e);
+            }
+
+            sndBuf.metrics.delivered(s);
+
+            segments.release(s);
+        }
+    }
+
+    /** Marks every unacknowledged segment in [from, to) of the send buffer as acked, cancelling its timer and
+     * sampling its RTT. Ranges are clipped to the current window, so stale or duplicate acks are harmless
+     *
+     * @param from first sequence number in the range
+     * @param to one past the last sequence number in the range
+     * @return number of segments that had not been acknowledged before
+     */
+    private int markAcked(int from, int to) {
+        int count = 0;
+
+        for (int seqNum = Math.max(from, sndBuf.base); seqNum < Math.min(to, sndBuf.nextSeqNum); seqNum++) {
+            RDTSegment s = sndBuf.slot(seqNum);
+
+            if (s != null && s.seqNum == seqNum && !s.acked) {
+                s.acked = true;
+                s.cancelTimer();
+                sampleRtt(s, seqNum);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /** Counts a Go Back N ack that acknowledged nothing new. Once dupAckThreshold acks in a row have repeated the
+     * ack for base - 1, the segment at base is presumed lost and the whole window is resent straight away instead
+     * of after the RTO. The congestion controller sees a loss rather than a timeout, so the window is halved
+     * instead of collapsing to one segment, and the ack clock keeps running (fast recovery). Each base is only
+     * fast retransmitted once, since the segments already in flight behind the hole go on producing duplicates
+     * until the resent window arrives
+     *
+     * @param ackNum sequence number acknowledged
+     * @param windowUpdate whether the ack moved the receiver's window, which makes it a window update instead
+     */
+    private void duplicateAck(int ackNum, boolean windowUpdate) {
+        if (ackNum != sndBuf.base - 1 || sndBuf.base == sndBuf.nextSeqNum || windowUpdate) {
+            return;
+        }
+
+        if (++dupAcks != dupAckThreshold || sndBuf.base == fastRetransmitBase) {
+            return;
+        }
+
+        fastRetransmitBase = sndBuf.base;
+
+        EventLog.info(EventSink.FAST_RETRANSMIT, sndBuf.base, dupAcks, 0, 0);
+
+        sndBuf.cc.onLoss(sndBuf.nextSeqNum - 1);
+        sndBuf.metrics.fastRetransmits.add(sndBuf.resendWindow(transport, dst));
+        sndBuf.runTimerTask(transport, dst); // Give the resent window a full RTO
+    }
+
+    /** Retransmits, without waiting for their timers, segments that have at least dupAckThreshold segments sent after
+     * them acknowledged, since reordering alone rarely moves a segment that far. Each segment is only sent this
+     * way once, and the congestion controller is told about the loss once per recovery episode
+     *
+     */
+    private void retransmitHoles() {
+        int ackedAbove = 0;
+
+        // One loss episode only cuts the window once: further holes are resent, but not reported to the congestion
+        // controller, until the cumulative ack passes everything outstanding when the episode began. NewReno has
+        // this guard of its own, but Reno and CUBIC do not
+        boolean lossReported = sackRecover >= 0 && sndBuf.base <= sackRecover;
+
+        for (int seqNum = sndBuf.nextSeqNum - 1; seqNum >= sndBuf.base; seqNum--) {
+            RDTSegment s = sndBuf.slot(seqNum);
+
+            if (s.acked) {
+                ackedAbove++;
+            }
+            else if (dupAckThreshold > 0 && ackedAbove >= dupAckThreshold && !s.retransmitted) {
+                if (!lossReported) {
+                    sackRecover = sndBuf.nextSeqNum - 1;
+                    sndBuf.cc.onLoss(sackRecover);
+                    lossReported = true;
+                }
+
+                EventLog.info(EventSink.SACK_HOLE, seqNum, 0, 0, 0);
+                s.retransmitted = true;
+                sndBuf.metrics.fastRetransmits.increment();
+                sndBuf.metrics.resent(Utility.udp_send(s, transport, dst, true, sndBuf.pacer.delay(s)));
+            }
+        }
+    }
+
+    /** Returns when the pending delayed ack is due
+     *
+     * @return clock.nanoTime() by which flushAck() must be called again, or 0 if no ack is pending
+     */
+    long ackDeadline() {
+        return ackDeadline;
+    }
+
+    /** Counts an in-order segment towards the next ack, which flushAck() sends once the batch has been drained
+     *
+     * @param seqNum sequence number of the segment
+     */
+    private void deferAck(int seqNum) {
+        ackPending++;
+        ackRecent = seqNum;
+    }
+
+    /** Sends the pending ack if ackEvery in-order segments have arrived since the last one, if delayed acks are
+     * disabled, or if the delayed ack timer has run out. Otherwise the timer is started
+     *
+     */
+    void flushAck() {
+        if (ackPending == 0) {
+            return;
+        }
+
+        long now = clock.nanoTime();
+
+        if (ackPending >= ackEvery || ackDelay == 0 || (ackDeadline != 0 && now - ackDeadline >= 0)) {
+            ackNow(false);
+        }
+        else if (ackDeadline == 0) {
+            ackDeadline = now + TimeUnit.MILLISECONDS.toNanos(ackDelay);
+        }
+    }
+
+    /** Immediately sends a cumulative ack, which also covers any segments waiting for a delayed ack
+     *
+     * @param resend whether or not this repeats an earlier ack
+     */
+    private void ackNow(boolean resend) {
+        int ackNum;
+
+        if (protocol == GBN) {
+            ackNum = rcvBuf.receivedFirst ? lastRecvdSeqNum : -1;
+        }
+        else {
+            ackNum = rcvBuf.base - 1;
+        }
+
+        sendAck(ackNum, resend, ackRecent);
+
+        ackPending = 0;
+        ackRecent = -1;
+        ackDeadline = 0;
+    }
+
+    /** Sends an ack carrying the current right edge of the receive window. In Selective Repeat, ackNum is
+     * cumulative and the ack also lists up to MAX_SACK_BLOCKS ranges received above it, starting with the
+     * range holding the segment that triggered the ack
+     *
+     * @param ackNum sequence number being acknowledged (-1 if nothing has been received yet)
+     * @param resend whether or not this repeats an earlier ack
+     * @param recent sequence number that triggered the ack, or -1
+     */
+    private void sendAck(int ackNum, boolean resend, int recent) {
+        RDTSegment ack_seg = segments.acquire();
+        ack_seg.connId = connId;
+        ack_seg.ackNum = ackNum;
+        ack_seg.flags = FLAGS_ACK;
+        ack_seg.length = 0;
+        ack_seg.rcvWin = rcvBuf.windowEdge();
+        advertisedEdge = ack_seg.rcvWin;
+
+        if (protocol == SR) {
+            addSackBlocks(ack_seg, recent);
+        }
+
+        sndBuf.metrics.ackSent(Utility.udp_send(ack_seg, transport, dst, resend));
+        segments.release(ack_seg); // Already encoded by the delay line
+    }
+
+    /** Tells the peer that one of its path MTU probes got through, and how large it was
+     *
+     * @param probe the probe
+     */
+    private void answerMtuProbe(RDTSegment probe) {
+        RDTSegment ack_seg = segments.acquire();
+        ack_seg.connId = connId;
+        ack_seg.seqNum = probe.seqNum;
+        ack_seg.ackNum = HDR_SIZE + probe.length;
+        ack_seg.flags = FLAGS_MTU_PROBE_ACK;
+        ack_seg.length = 0;
+
+        Utility.udp_send(ack_seg, transport, dst, false);
+        segments.release(ack_seg); // Already encoded by the delay line
+    }
+
+    /** Adds the runs of out-of-order segments held in the receive buffer to an ack
+     *
+     * @param ack_seg ack segment being prepared
+     * @param recent sequence number that triggered the ack, whose range is listed first
+     */
+    private void addSackBlocks(RDTSegment ack_seg, int recent) {
+        int edge = rcvBuf.windowEdge();
+        int seqNum = rcvBuf.base + 1;
+
+        // The block holding the most recent arrival goes first, so a lost ack costs the sender the least
+        if (recent > rcvBuf.base) {
+            int start = recent, end = recent + 1;
+
+            while (start - 1 > rcvBuf.base && rcvBuf.contains(start - 1)) {
+                start--;
+            }
+
+            while (end < edge && rcvBuf.contains(end)) {
+                end++;
+            }
+
+            ack_seg.addSackBlock(start, end);
+        }
+
+        while (seqNum < edge && ack_seg.sackBlocks() < MAX_SACK_BLOCKS) {
+            if (!rcvBuf.contains(seqNum)) {
+                seqNum++;
+                continue;
+            }
+
+            int start = seqNum;
+
+            while (seqNum < edge && rcvBuf.contains(seqNum)) {
+                seqNum++;
+            }
+
+            if (recent < start || recent >= seqNum) { // Already listed first
+                ack_seg.addSackBlock(start, seqNum);
+            }
+        }
+    }
+
+    /** Re-acks the last in-order segment, so that the sender learns the current window
+     *
+     */
+    private void windowUpdate() {
+        if (protocol == GBN) {
+            sendAck(rcvBuf.receivedFirst ? lastRecvdSeqNum : -1, true, -1);
+        }
+        else {
+            sendAck(rcvBuf.base - 1, true, -1);
+        }
+    }
+
+    /** Called on the application thread after it takes segments. The window update itself is left to the thread
+     * that owns this Receiver, which is posted to only when the window's right edge has moved at least half a
+     * buffer past the last one advertised, since windowOpened() never sends an update otherwise
+     *
+     */
+    void windowRead() {
+        ReceiverGroup g = group;
+
+        if (g != null && !windowPosted && rcvBuf.windowEdge() - advertisedEdge >= Math.max(1, rcvBuf.size / 2)) {
+            windowPosted = true;
+            g.post(this);
+        }
+    }
+
+    /** Called on the thread that owns this Receiver after the upper layer takes a segment. If the last ack
+     * advertised a closed window, a window update is sent once at least half of the buffer is free again, so the
+     * sender neither stalls nor trickles out one segment at a time
+     *
+     */
+    void windowOpened() {
+        int next = (protocol == GBN) ? expectedSeqNum : rcvBuf.base;
+        int free = rcvBuf.windowEdge() - next;
+
+        if (advertisedEdge <= next && free >= Math.max(1, rcvBuf.size / 2)) {
+            windowUpdate();
+        }
+    }
+
+    /** Feeds the round trip time of a newly acked segment to the send buffer's RTO estimator. Following Karn's
+     * rule, segments that have been retransmitted are skipped, since the ack could belong to either copy
+     *
+     * @param acked segment found in the send buffer
+     * @param ackNum sequence number carried by the ack
+     */
+    private void sampleRtt(RDTSegment acked, int ackNum) {
+        if (acked != null && acked.seqNum == ackNum && !acked.retransmitted) {
+            long rtt = clock.nanoTime() - acked.sentAt;
+
+            sndBuf.rtt.sample(rtt);
+            sndBuf.metrics.rtt.record(rtt);
+        }
+    }
+
+} // end Receiver class
@@ -0,0 +1,109 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static rdt.RDT.segments;
+
+/** Runs Receivers on behalf of a single thread, and flushes their acks together. Segments from one batch are
+ * handed over one at a time, and once the batch is done each Receiver it touched sends at most one ack. Receivers
+ * still holding back a delayed ack stay in the group until it falls due. A Receiver is only ever touched by the
+ * thread running its group, so other threads post work to the group instead, which wakes that thread up
+ *
+ * @author Chris Harris
+ */
+class ReceiverGroup {
+    private ArrayList<Receiver> flushing = new ArrayList<>(); // Receivers with an ack to send, or a delayed ack pending
+    private final ConcurrentLinkedQueue<Receiver> posted = new ConcurrentLinkedQueue<>(); // Window updates to check
+    private final Runnable wakeup; // Wakes the thread running the group, so that it calls flushAcks()
+
+    /**
+     *
+     * @param wakeup_ wakes the thread running the group, or has it call flushAcks() soon if it is not waiting
+     */
+    ReceiverGroup(Runnable wakeup_) {
+        wakeup = wakeup_;
+    }
+
+    /** Lets a Receiver process a segment, recycling the segment unless it was placed in the receive buffer
+     *
+     * @param r Receiver of the connection the segment belongs to
+     * @param seg decoded segment, owned by the caller until now
+     */
+    void handle(Receiver r, RDTSegment seg) {
+        if (r.closed) {
+            segments.release(seg); // Still queued on a shard, or routed before the close was seen
+            return;
+        }
+
+        if (r.group != this) {
+            r.group = this; // Owned by this group's thread from here on
+        }
+
+        if (!r.process(seg)) {
+            segments.release(seg);
+        }
+
+        if (!r.flushQueued) {
+            r.flushQueued = true;
+            flushing.add(r);
+        }
+    }
+
+    /** Asks the thread running the group to check whether a Receiver's window has reopened far enough to send a
+     * window update. Called by the application thread after it takes segments
+     *
+     * @param r Receiver of the connection
+     */
+    void post(Receiver r) {
+        posted.add(r);
+        wakeup.run();
+    }
+
+    /** Checks whether any work has been posted since the last flushAcks(), before the thread running the group
+     * goes to sleep
+     *
+     * @return a boolean value
+     */
+    boolean hasPosted() {
+        return !posted.isEmpty();
+    }
+
+    /** Sends the window updates posted by other threads, then lets every Receiver touched since the last call send
+     * its ack, and works out how long the next wait may last before a delayed ack falls due
+     *
+     * @return msec until the earliest delayed ack deadline, or 0 if none is pending
+     */
+    long flushAcks() {
+        Receiver p;
+
+        while ((p = posted.poll()) != null) {
+            p.windowPosted = false;
+            p.windowOpened();
+        }
+
+        long now = RDT.clock.nanoTime();
+        long earliest = 0;
+
+        for (int i = flushing.size() - 1; i >= 0; i--) {
+            Receiver r = flushing.get(i);
+            r.flushAck();
+
+            long deadline = r.ackDeadline();
+
+            if (deadline == 0) {
+                // Nothing pending any more, so swap the last entry into this slot
+                r.flushQueued = false;
+                flushing.set(i, flushing.get(flushing.size() - 1));
+                flushing.remove(flushing.size() - 1);
+            }
+            else if (earliest == 0 || deadline - earliest < 0) {
+                earliest = deadline;
+            }
+        }
+
+        return (earliest == 0) ? 0 : Math.max(1, (earliest - now) / 1000000);
+    }
+} // end ReceiverGroup class
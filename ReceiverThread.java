@@ -3,268 +3,297 @@
 package rdt;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-
-import static rdt.RDT.*;
-import static rdt.RDT.ANSI_RESET;
-import static rdt.RDTSegment.FLAGS_ACK;
-import static rdt.RDTSegment.FLAGS_ACKED;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static rdt.RDT.segments;
 import static rdt.RDTSegment.HDR_SIZE;
 
-/** Receives packets from the network, and responds appropriately by either acking the packets,
- * or delivering them to the upper layer. Contains a buffer exclusively for sending packets, and
- * another buffer exclusively for receiving packets
+/** Reads packets from a socket, decodes them, and hands each one to the Receiver of the connection it belongs
+ * to. A point-to-point RDT has a single Receiver. A listener has one per peer, keyed by the peer's address and
+ * the connection ID in the segment header, and new peers are turned into connections for RDTListener.accept().
+ * A listener's connections can be spread over worker Shards, leaving this thread to decode and route only.
+ * It runs on a thread from RDT's executor, by default a dedicated platform thread, unless it is registered with an
+ * EventLoop, which then calls drain() whenever the socket is readable
  *
  * @author Chris Harris
  */
-class ReceiverThread extends Thread {
-    private RDTBuffer rcvBuf, sndBuf;
-    private DatagramSocket socket;
-    private InetAddress dst_ip;
-    private int dst_port;
-    private int expectedSeqNum = 0;
-    private int lastRecvdSeqNum = 0;
-
-    ReceiverThread (RDTBuffer rcv_buf, RDTBuffer snd_buf, DatagramSocket s,
-                    InetAddress dst_ip_, int dst_port_) {
-        rcvBuf = rcv_buf;
-        sndBuf = snd_buf;
-        socket = s;
-        dst_ip = dst_ip_;
-        dst_port = dst_port_;
+class ReceiverThread implements Runnable {
+    private UdpTransport transport;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(UdpTransport.MAX_DATAGRAM_SIZE); // Reused for every datagram
+    private Receiver receiver;   // The only connection, in point-to-point mode
+    private RDTListener listener; // Opens connections for new peers, in listener mode
+    private HashMap<ConnKey, Receiver> receivers = new HashMap<>();
+    private ConnKey lookup = new ConnKey(); // Reused for every lookup
+    private final ConcurrentLinkedQueue<Receiver> removed = new ConcurrentLinkedQueue<>(); // Closed by the application
+    // Runs the Receivers on this thread unless sharded, replaced by the loop's shared group on an EventLoop
+    ReceiverGroup group = new ReceiverGroup(() -> transport.wakeup());
+    private Shard[] shards;      // Worker threads the Receivers are spread over, or null
+
+    /**
+     *
+     * @param t transport to read from
+     * @param r Receiver every segment is handed to
+     */
+    ReceiverThread (UdpTransport t, Receiver r) {
+        transport = t;
+        receiver = r;
+    }
+
+    /**
+     *
+     * @param t transport to read from, shared by every connection of the listener
+     * @param l listener that opens a connection for each new peer
+     * @param numShards number of worker threads processing the connections' segments, or 0 to process them on
+     *                  this thread
+     */
+    ReceiverThread (UdpTransport t, RDTListener l, int numShards) {
+        transport = t;
+        listener = l;
+
+        if (numShards > 0) {
+            shards = new Shard[numShards];
+
+            for (int i = 0; i < numShards; i++) {
+                shards[i] = new Shard();
+            }
+        }
     }
 
-    /** Starts the thread
+    /** Runs the thread. Each pass waits for the channel (or the earliest delayed ack deadline), drains every
+     * datagram already queued, and then sends at most one ack per connection covering the whole batch. When
+     * sharded, this thread only decodes and routes, and each shard flushes the acks of its own connections
      *
      */
     @Override
     public void run() {
+        long timeout = 0;
 
-        while (true) {
-
-            // Receive a packet from the socket, and convert it into an RDTSegment
-            byte[] buffer = new byte[MSS + HDR_SIZE];
-            DatagramPacket pkt = new DatagramPacket(buffer, MSS + HDR_SIZE);
+        startShards();
 
+        while (true) {
             try {
-                socket.receive(pkt);
+                transport.await(timeout);
+                drain();
+            } catch (ClosedSelectorException | ClosedChannelException e) {
+                shutdown();
+                return; // The transport has been closed
             } catch (IOException e) {
                 e.printStackTrace();
             }
 
-            RDTSegment seg = new RDTSegment();
-            makeSegment(seg, pkt.getData());
+            if (shards != null) {
+                publish();
+            }
+            else {
+                timeout = group.flushAcks();
+            }
+        }
+    }
+
+    /** Starts the worker threads, if the connections are sharded
+     *
+     */
+    void startShards() {
+        if (shards != null) {
+            for (int i = 0; i < shards.length; i++) {
+                RDT.execute(shards[i], "rdt-shard-" + i);
+            }
+        }
+    }
 
-            /*------------------------------------------------------------------------
+    /** Stops the worker threads, once the transport has been closed
+     *
+     */
+    void shutdown() {
+        if (shards != null) {
+            for (Shard shard : shards) {
+                shard.shutdown();
+            }
+        }
+    }
 
-                                            GO-BACK-N
+    /** Receives every queued datagram from the channel, decodes each into an RDTSegment, and hands it to its
+     * connection: straight to the group's Receiver, or queued for the connection's shard
+     *
+     * @throws IOException if the channel could not be read
+     */
+    void drain() throws IOException {
+        SocketAddress src;
+        Receiver closed;
 
-            ------------------------------------------------------------------------*/
-            if (protocol == GBN) {
-                if (seg.containsFin()) {
-                    System.out.println(System.currentTimeMillis() + ":" + ANSI_PURPLE + " RECEIVED FIN" + ANSI_RESET);
-                }
+        while ((closed = removed.poll()) != null) {
+            forget(closed);
+        }
 
-                if (seg.containsAck()) {
-
-                    // AckNum = -1 indicates that the receiver has not received the first expected sequence number (i.e. 0)
-                    if (seg.ackNum == -1) {
-                        System.out.println(System.currentTimeMillis() + ":" + ANSI_YELLOW + " RECEIVED ACK: " + ANSI_RESET +
-                                "Segment number " + seg.ackNum);
-                        timer.cancel();
-                        sndBuf.runTimerTask(socket, dst_ip, dst_port);
-                        continue;
-                    }
-
-                    // Set the ACKED flag for the buffer segment with matching sequence number
-                    if (sndBuf.buf[seg.ackNum % sndBuf.size].flags < FLAGS_ACKED) {
-                        sndBuf.buf[seg.ackNum % sndBuf.size].flags = FLAGS_ACKED;
-                    }
-
-                    System.out.println(System.currentTimeMillis() + ":" + ANSI_YELLOW + " RECEIVED ACK: " + ANSI_RESET +
-                            "Segment number " + seg.ackNum);
-
-                    if (sndBuf.size > 1) {
-                        if (seg.ackNum == sndBuf.base) {
-                            sndBuf.base = seg.ackNum + 1;
-                            sndBuf.semEmpty.release(); // Notify that an empty slot is available, so putNext() can take more data
-                        }
-                        else if (seg.ackNum > sndBuf.base) {
-                            // Acks are cumulative, so check how far the window is sliding and release that many empty slots
-                            int numSlots = seg.ackNum - sndBuf.base;
-
-                            for (int i = 0; i < numSlots; i++) {
-                                sndBuf.base++;
-                                sndBuf.semEmpty.release(); // Notify that an empty slot is available, so putNext() can take more data
-                            }
-                        }
-                    }
-                    else {
-                        sndBuf.base = seg.ackNum + 1;
-                        sndBuf.semEmpty.release(); // Notify that an empty slot is available, so putNext() can take more data
-                    }
-
-                    if (sndBuf.base == sndBuf.nextSeqNum) { // All packets in the pipeline have been acked, so stop the timer
-                        try {
-                            timer.cancel();
-                            System.out.println(System.currentTimeMillis() + ":" + ANSI_CYAN + " TIMER CANCELLED" + ANSI_RESET);
-                        }
-                        catch (IllegalStateException e) {
-                            System.out.println(e);
-                        }
-                    }
-                    else { // Acks are being received, but there are still unacknowledged packets in the pipeline, so restart the timer
-                        timer.cancel();
-                        sndBuf.runTimerTask(socket, dst_ip, dst_port);
-                    }
-                }
+        while ((src = transport.receive(buffer)) != null) {
+            RDTSegment seg = segments.acquire();
+            Receiver r = makeSegment(seg, buffer) ? route(src, seg) : null; // Too short, truncated, corrupted or unknown
 
-                if (seg.containsData()) {
-
-                    // Ensure that segment received is the next in-order segment
-                    RDTSegment ack_seg = new RDTSegment();
-                    boolean resend = false;
-
-                    if (seg.seqNum == expectedSeqNum) {
-                        ack_seg.ackNum = seg.seqNum;
-                        expectedSeqNum++;
-                        lastRecvdSeqNum = seg.seqNum;
-                        rcvBuf.putNext(seg);
-                        rcvBuf.receivedFirst = true;
-                    }
-                    else {
-                        // Drop the packet (implicitly) and ack the last received packet
-                        if (rcvBuf.receivedFirst) {
-                            ack_seg.ackNum = lastRecvdSeqNum;
-                        }
-                        else {
-                            ack_seg.ackNum = -1;
-                        }
-
-                        System.out.println(System.currentTimeMillis() + ":" + ANSI_RED + " RECEIVED OUT OF ORDER PACKET: " +
-                                ANSI_RESET + "SeqNum=" + seg.seqNum);
-                        resend = true;
-                    }
-
-                    ack_seg.flags = FLAGS_ACK;
-                    Utility.udp_send(ack_seg, socket, dst_ip, dst_port, resend);
-                }
+            if (r == null) {
+                segments.release(seg);
             }
+            else if (r.shard == null) {
+                group.handle(r, seg);
+            }
+            else if (!r.shard.offer(r, seg)) {
+                segments.release(seg); // The shard is falling behind, so drop it like a congested link would
+            }
+        }
+    }
 
-            /*------------------------------------------------------------------------
-
-                                      SELECTIVE REPEAT
-
-            ------------------------------------------------------------------------*/
-            if (protocol == SR) {
-                if (seg.containsAck()) {
-                    if (seg.ackNum < sndBuf.base) {
-                        continue;
-                    }
-
-                    try {
-                        sndBuf.semMutex.acquire(); // Acquire exclusive lock
-
-                        sndBuf.buf[seg.ackNum % sndBuf.size].flags = FLAGS_ACKED;
-                        sndBuf.buf[seg.ackNum % sndBuf.size].timer.cancel();
-                        System.out.println(System.currentTimeMillis() + ":" + ANSI_YELLOW + " RECEIVED ACK: " + ANSI_RESET +
-                                "Segment number " + seg.ackNum);
-
-                        if (seg.ackNum == sndBuf.base) {
-                            // Increment base and notify that an empty slot is available
-                            sndBuf.base++;
-                            sndBuf.semEmpty.release();
-
-                            // Check if there are contiguous acknowledged packets in the buffer – if so, increment
-                            // base, cancel the timer and notify that additional empty slots are available
-                            for (int i = sndBuf.base % sndBuf.size; i < sndBuf.size; i++) {
-                                if (sndBuf.buf[i] != null && sndBuf.buf[i].flags == FLAGS_ACKED) {
-                                    sndBuf.base++;
-                                    sndBuf.buf[i].timer.cancel();
-                                    sndBuf.semEmpty.release(); // Notify that an empty slot is available, so putNext() can take more data
-                                }
-                                else {
-                                    break;
-                                }
-                            }
-                        }
-
-                        sndBuf.semMutex.release(); // Release lock
-                    }
-                    catch (InterruptedException e) {
-                        System.out.println(e);
-                    }
-                }
-
-                if (seg.containsData()) {
-                    System.out.println(System.currentTimeMillis() + ":" + ANSI_YELLOW + " RECEIVED SEGMENT: " + ANSI_RESET +
-                            "SegNum=" + seg.seqNum);
+    /** Stops routing segments to a connection the application has closed. The map is only touched by the thread
+     * reading the socket, so the Receiver is queued for it, and forgotten the next time drain() runs. Until then
+     * route() already skips it, since it is marked closed
+     *
+     * @param r Receiver of the closed connection
+     */
+    void remove(Receiver r) {
+        r.closed = true;
+        removed.add(r);
+        transport.wakeup(); // Only needed with a thread of its own, an EventLoop drains again on the next datagram
+    }
 
-                    // Prepare ack segment
-                    RDTSegment ack_seg = new RDTSegment();
-                    ack_seg.ackNum = seg.seqNum;
-                    ack_seg.flags = FLAGS_ACK;
+    /** Removes a closed connection from the map and unpins it from its shard. Called on the thread reading the
+     * socket
+     *
+     * @param r Receiver of the closed connection
+     */
+    private void forget(Receiver r) {
+        lookup.addr = r.dst;
+        lookup.connId = r.connId;
 
-                    // Send ack
-                    Utility.udp_send(ack_seg, socket, dst_ip, dst_port, false);
+        if (receivers.get(lookup) == r) {
+            receivers.remove(lookup);
+        }
 
-                    // If the received sequence number is within the window, put it in the correct slot in the receive buffer
-                    if (seg.seqNum >= rcvBuf.base && seg.seqNum < (rcvBuf.base + rcvBuf.size)) {
-                        rcvBuf.putSeqNum(seg);
+        r.shard = null;
+    }
 
-                        // If sequence number = base, prepare to deliver it (and any contiguous packets) to the upper layer
-                        if (seg.seqNum == rcvBuf.base) {
-                            int numToDeliver = 1;
+    /** Makes the segments queued by drain() visible to the shards
+     *
+     */
+    void publish() {
+        if (shards != null) {
+            for (Shard shard : shards) {
+                shard.publish();
+            }
+        }
+    }
 
-                            try {
-                                rcvBuf.semMutex.acquire();
+    /** Finds the connection a segment belongs to. In listener mode, the first data segment or probe from an
+     * unknown peer, or from one whose connection has been closed, opens a new connection
+     *
+     * @param src address the datagram came from
+     * @param seg decoded segment
+     * @return the connection's Receiver, or null if the segment should be dropped
+     */
+    private Receiver route(SocketAddress src, RDTSegment seg) {
+        if (listener == null) {
+            return receiver;
+        }
 
-                                rcvBuf.nextSeqNum = seg.seqNum;
-                                int next = rcvBuf.nextSeqNum;
+        lookup.addr = src;
+        lookup.connId = seg.connId;
+        Receiver r = receivers.get(lookup);
 
-                                while (rcvBuf.contains(++next)) {
-                                    numToDeliver++;
-                                }
+        if (r != null && r.closed) {
+            forget(r); // Closed since the last drain(), so the peer is treated as new
+            r = null;
+        }
 
-                                // Notify that N slots have been filled, so that getNext() knows to deliver them to the upper layer
-                                rcvBuf.semFull.release(numToDeliver);
+        if (r == null && (seg.containsData() || seg.containsProbe())) {
+            r = listener.open((InetSocketAddress) src, seg.connId);
 
-                                rcvBuf.semMutex.release();
+            if (r != null) {
+                ConnKey key = new ConnKey(src, seg.connId);
+                receivers.put(key, r);
 
-                                rcvBuf.base += numToDeliver; // Move base up by N slots
-                            }
-                            catch (InterruptedException e) {
-                                System.out.println(e);
-                            }
-                        }
-                    }
+                // Pin the connection to one shard, so that its state is only ever touched by one thread
+                if (shards != null) {
+                    r.shard = shards[(key.hashCode() & Integer.MAX_VALUE) % shards.length];
                 }
             }
         }
+
+        return r;
     }
 
-    /** Populates the fields of an RDTSegment with the values found in the network datagram packet
+    /** Populates the fields of an RDTSegment straight from a received datagram, using absolute gets. The
+     * segment's existing data array is reused whenever it is large enough to hold the body. A datagram flagged
+     * as carrying a CRC32C is checked before anything is decoded
      *
      * @param seg RDT segment to be populated with data
-     * @param payload data from received packet to populate the segment
+     * @param payload buffer holding the datagram between its position and limit
+     * @return false if the datagram is too short for the header or the length it declares, or is corrupted
      */
-    void makeSegment(RDTSegment seg, byte[] payload) {
-        seg.seqNum = Utility.byteToInt(payload, RDTSegment.SEQ_NUM_OFFSET);
-        seg.ackNum = Utility.byteToInt(payload, RDTSegment.ACK_NUM_OFFSET);
-        seg.flags  = Utility.byteToInt(payload, RDTSegment.FLAGS_OFFSET);
-        seg.checksum = Utility.byteToInt(payload, RDTSegment.CHECKSUM_OFFSET);
-        seg.rcvWin = Utility.byteToInt(payload, RDTSegment.RCV_WIN_OFFSET);
-        seg.length = Utility.byteToInt(payload, RDTSegment.LENGTH_OFFSET);
-
-        byte segData[] = new byte[seg.length];
-
-        for (int i = 0; i < seg.length; i++) {
-            segData[i] = payload[i + RDTSegment.HDR_SIZE];
+    boolean makeSegment(RDTSegment seg, ByteBuffer payload) {
+        int size = payload.remaining();
+
+        if (size < HDR_SIZE) {
+            return false;
         }
 
-        seg.setData(segData);
+        int length = payload.getInt(RDTSegment.LENGTH_OFFSET);
+
+        if (length < 0 || length > size - HDR_SIZE) {
+            return false;
+        }
+
+        int flags = payload.getInt(RDTSegment.FLAGS_OFFSET);
+        int checksum = payload.getInt(RDTSegment.CHECKSUM_OFFSET);
+
+        if ((flags & RDTSegment.FLAGS_CRC32C) != 0 && checksum != Utility.crc32c(payload, HDR_SIZE + length)) {
+            return false;
+        }
+
+        seg.seqNum = payload.getInt(RDTSegment.SEQ_NUM_OFFSET);
+        seg.ackNum = payload.getInt(RDTSegment.ACK_NUM_OFFSET);
+        seg.flags = flags & ~RDTSegment.FLAGS_CRC32C;
+        seg.checksum = checksum;
+        seg.rcvWin = payload.getInt(RDTSegment.RCV_WIN_OFFSET);
+        seg.connId = payload.getInt(RDTSegment.CONN_ID_OFFSET);
+        seg.length = length;
+
+        byte[] segData = seg.buffer(length);
+
+        payload.get(HDR_SIZE, segData, 0, length);
+
+        return true;
     }
 
+    /** Identifies a connection by the peer's address and the connection ID it chose
+     *
+     */
+    private static final class ConnKey {
+        SocketAddress addr;
+        int connId;
+
+        ConnKey() {}
+
+        ConnKey(SocketAddress addr_, int connId_) {
+            addr = addr_;
+            connId = connId_;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ConnKey)) {
+                return false;
+            }
+
+            ConnKey k = (ConnKey) o;
+            return connId == k.connId && addr.equals(k.addr);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * addr.hashCode() + connId;
+        }
+    }
 } // end ReceiverThread class
@@ -0,0 +1,52 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+/** Classic TCP Reno congestion control: slow start up to ssthresh, then additive increase of one segment
+ * per round trip. Every loss halves the window, and a timeout drops it back to one segment
+ *
+ * @author Chris Harris
+ */
+class RenoController implements CongestionController {
+    double cwnd = INITIAL_WINDOW;
+    double ssthresh = Integer.MAX_VALUE;
+    boolean timedOut = false; // Set until the next ack, so repeated timeouts do not keep halving ssthresh
+
+    @Override
+    public synchronized int window() {
+        return Math.max(1, (int) cwnd);
+    }
+
+    @Override
+    public synchronized boolean slowStart() {
+        return cwnd < ssthresh;
+    }
+
+    @Override
+    public synchronized void onAck(int acked, int cumulativeAck) {
+        timedOut = false;
+
+        if (cwnd < ssthresh) {
+            cwnd += acked;  // Slow start
+        }
+        else {
+            cwnd += (double) acked / cwnd; // Congestion avoidance
+        }
+    }
+
+    @Override
+    public synchronized void onLoss(int highestSent) {
+        ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public synchronized void onTimeout() {
+        if (!timedOut) {
+            ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+        }
+
+        cwnd = 1;
+        timedOut = true;
+    }
+} // end RenoController class
@@ -0,0 +1,93 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+/** Free list of RDTSegments, so that the send, receive and ack paths reuse segments and their data arrays
+ * instead of allocating new ones for every packet.
+ *
+ * A segment has exactly one owner at a time, and only the owner may release it:
+ * - A segment being sent belongs to the application thread until putNext() hands it to the send buffer. The
+ *   send buffer releases it when an ack slides base past it
+ * - A received segment belongs to the receiver thread. Data placed in the receive buffer passes to the buffer,
+ *   and then to the application thread once getNext() returns it; RDT.receive() releases it after copying
+ *   the data out. With a DeliveryHandler set, the receiver thread takes it back and releases it once the
+ *   handler returns. Anything else (acks, probes, duplicates) is released as soon as it has been processed
+ * - Acks and probes are released by their sender right after udp_send(), since the delay line encodes the
+ *   segment before returning
+ *
+ * Data arrays grow to fit the largest body a segment has held, up to a whole UDP datagram with a large MSS or a
+ * path MTU probe, so the pool bounds the bytes its idle segments hold as well as their number. A segment whose
+ * array would go over the bound is left to the GC instead
+ *
+ * @author Chris Harris
+ */
+class SegmentPool {
+    static final int DEFAULT_CAPACITY = 1024; // Segments kept for reuse, anything beyond is left to the GC
+    static final int MAX_POOLED_BYTES = 4 << 20; // Bytes of data arrays kept in idle segments
+
+    private final RDTSegment[] free; // Guarded by this
+    private int count = 0;
+    private long pooledBytes = 0;    // Size of the idle segments' data arrays, guarded by this
+
+    SegmentPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     *
+     * @param capacity maximum number of idle segments kept in the pool
+     */
+    SegmentPool(int capacity) {
+        free = new RDTSegment[capacity];
+    }
+
+    /** Takes a segment from the pool, or creates one if the pool is empty. Every field is reset, but the data
+     * array is kept
+     *
+     * @return a segment owned by the caller
+     */
+    RDTSegment acquire() {
+        RDTSegment seg = null;
+
+        synchronized (this) {
+            if (count > 0) {
+                seg = free[--count];
+                free[count] = null;
+                seg.pooled = false;
+                pooledBytes -= seg.capacity();
+            }
+        }
+
+        if (seg == null) {
+            return new RDTSegment();
+        }
+
+        seg.reset();
+        return seg;
+    }
+
+    /** Returns a segment to the pool. The caller must own the segment, and must not touch it afterwards
+     *
+     * @param seg segment to be recycled, may be null
+     */
+    void release(RDTSegment seg) {
+        if (seg == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (seg.pooled) {
+                System.out.println("SegmentPool release(): " + seg + " released twice");
+                return;
+            }
+
+            int bytes = seg.capacity();
+
+            if (count < free.length && pooledBytes + bytes <= MAX_POOLED_BYTES) {
+                seg.pooled = true;
+                free[count++] = seg;
+                pooledBytes += bytes;
+            }
+        }
+    }
+} // end SegmentPool class
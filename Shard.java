@@ -0,0 +1,145 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/** Worker that processes the segments of a fixed set of connections. The listener's reading thread
+ * decodes each datagram and offers it to the shard its connection hashes to, through a single-producer/
+ * single-consumer ring. Every Receiver belongs to exactly one shard, so its state is only ever touched by that
+ * shard's thread and needs no locking, and the connections of a busy listener are spread over several cores.
+ * Each shard runs on a thread from RDT's executor
+ *
+ * @author Chris Harris
+ */
+class Shard implements Runnable {
+    static final int CAPACITY = 4096; // Segments queued per shard, must be a power of two
+
+    private static final VarHandle PUT_INDEX;
+    private static final VarHandle TAKE_INDEX;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            PUT_INDEX = lookup.findVarHandle(Shard.class, "putIndex", int.class);
+            TAKE_INDEX = lookup.findVarHandle(Shard.class, "takeIndex", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final RDTSegment[] segs = new RDTSegment[CAPACITY];
+    private final Receiver[] receivers = new Receiver[CAPACITY]; // Connection each queued segment belongs to
+    private final int mask = CAPACITY - 1;
+    private ReceiverGroup group = new ReceiverGroup(this::wake);
+
+    private int putIndex;  // Slots published to the shard, accessed through PUT_INDEX
+    private int takeIndex; // Slots freed by the shard, accessed through TAKE_INDEX
+    private int put = 0;   // Slots filled by the reading thread, published in batches
+    private volatile Thread waiting;     // Set while the shard is parked on an empty ring
+    private volatile boolean stopped = false;
+
+    /** Queues a segment for the shard. Nothing is visible to the shard until publish() is called. Reading thread
+     * only
+     *
+     * @param r Receiver of the connection the segment belongs to
+     * @param seg decoded segment, owned by the shard from here on if accepted
+     * @return false if the ring is full, in which case the caller still owns the segment
+     */
+    boolean offer(Receiver r, RDTSegment seg) {
+        if (put - (int) TAKE_INDEX.getAcquire(this) == CAPACITY) {
+            return false;
+        }
+
+        segs[put & mask] = seg;
+        receivers[put & mask] = r;
+        put++;
+
+        return true;
+    }
+
+    /** Makes every segment offered so far visible to the shard, and wakes it if it is parked. Called once per
+     * batch rather than once per segment. Reading thread only
+     *
+     */
+    void publish() {
+        if (put == putIndex) {
+            return;
+        }
+
+        PUT_INDEX.setRelease(this, put);
+        VarHandle.fullFence(); // Pairs with the shard publishing itself in waiting before it re-reads putIndex
+
+        Thread t = waiting;
+
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /** Stops the shard once it has finished its current batch
+     *
+     */
+    void shutdown() {
+        stopped = true;
+        wake();
+    }
+
+    /** Unparks the shard if it is waiting, e.g. for a window update posted to its group
+     *
+     */
+    private void wake() {
+        Thread t = waiting;
+
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /** Drains the ring, handing each segment to its Receiver, then flushes the acks for the batch. While the ring
+     * is empty, the shard parks until more segments are published or the earliest delayed ack falls due
+     *
+     */
+    @Override
+    public void run() {
+        int take = 0;
+        long timeout = 0;
+
+        while (!stopped) {
+            int published = (int) PUT_INDEX.getAcquire(this);
+
+            if (take == published) {
+                waiting = Thread.currentThread();
+
+                if (take == (int) PUT_INDEX.getVolatile(this) && !stopped && !group.hasPosted()) {
+                    if (timeout == 0) {
+                        LockSupport.park(this);
+                    }
+                    else {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeout));
+                    }
+                }
+
+                waiting = null;
+            }
+            else {
+                while (take != published) {
+                    RDTSegment seg = segs[take & mask];
+                    Receiver r = receivers[take & mask];
+                    segs[take & mask] = null;
+                    receivers[take & mask] = null;
+                    take++;
+
+                    group.handle(r, seg);
+                }
+
+                TAKE_INDEX.setRelease(this, take);
+            }
+
+            timeout = group.flushAcks();
+        }
+    }
+} // end Shard class
@@ -0,0 +1,403 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Discrete-event simulation of RDT connections in virtual time. Connections created while it is set with
+ * RDT.setSimulator() send their datagrams to each other in memory instead of over sockets, and their
+ * retransmission timers, RTT samples and delayed acks all read the simulator's clock. Nothing happens between
+ * events, so the clock jumps straight from one to the next, and hours of traffic take seconds. Everything runs
+ * on the thread calling run(), and every random choice (connection IDs, losses, delays) is drawn from one
+ * seeded generator, so a run with the same seed and settings always plays out the same way.
+ *
+ * The link between two endpoints has a fixed one-way latency and, optionally, a bandwidth at which datagrams
+ * are serialized and a path MTU above which they are dropped. The emulated loss and delay set on RDT apply on
+ * top, and like the real delay line the link never reorders datagrams. Applications drive their connections
+ * through sendAsync() and a DeliveryHandler, and schedule their own work with schedule(), since a blocking call
+ * would stop the clock.
+ *
+ * Usage: java rdt.Simulator [seed] [seconds], which sweeps protocols, window sizes and loss rates
+ *
+ * @author Chris Harris
+ */
+public class Simulator implements Clock {
+    public static final int DEFAULT_LATENCY = 10; // One-way propagation delay in msec
+    static final long START = TimeUnit.SECONDS.toNanos(1); // Clock reading at the start, since 0 marks unset deadlines
+
+    private static final int SWEEP_MSS = 1000;
+    private static final int SWEEP_MESSAGE = 64 * 1024;
+    private static final int[] SWEEP_WINDOWS = {4, 16, 64};
+    private static final double[] SWEEP_LOSS_RATES = {0.0, 0.01, 0.05, 0.1};
+
+    final Random random;
+    private long now = START;
+    final TimingWheel timer = new TimingWheel(this, () -> {}); // Checked after every event, so never needs waking
+    // Receivers of every endpoint, like on an EventLoop. Posted work is run as an event at the current time
+    private final ReceiverGroup group = new ReceiverGroup(() -> at(now, this::flushAcks));
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final HashMap<Integer, Endpoint> endpoints = new HashMap<>(); // Keyed by port
+    private final ArrayDeque<Datagram> free = new ArrayDeque<>(); // Recycled datagrams
+    private long order = 0;        // Tie-breaker for events at the same time
+    private long processed = 0;    // Events run so far
+    private long ackFlushAt = 0;   // Time of the scheduled delayed ack flush, 0 if none
+    private long latencyNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LATENCY);
+    private long bytesPerSecond = 0;
+    private int pathMtu = UdpTransport.MAX_DATAGRAM_SIZE;
+
+    /**
+     *
+     * @param seed seed of every random choice made during the simulation
+     */
+    public Simulator(long seed) {
+        random = new Random(seed);
+    }
+
+    /** Sets the link between every pair of endpoints
+     *
+     * @param latencyMillis one-way propagation delay in msec
+     * @param bytesPerSecond_ rate at which each endpoint serializes its datagrams, or 0 for no limit
+     */
+    public void setLink(int latencyMillis, long bytesPerSecond_) {
+        latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        bytesPerSecond = bytesPerSecond_;
+    }
+
+    /** Sets the largest datagram the link carries. Larger ones are dropped, like on a path that does not fragment
+     *
+     * @param maxDatagramSize size in bytes, header included
+     */
+    public void setPathMtu(int maxDatagramSize) {
+        pathMtu = maxDatagramSize;
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(now - START);
+    }
+
+    /** Returns the virtual time elapsed since the simulation started
+     *
+     * @return time in msec
+     */
+    public long now() {
+        return currentTimeMillis();
+    }
+
+    /** Returns the number of events run so far, e.g. to compare the cost of two runs
+     *
+     * @return the number of events
+     */
+    public long events() {
+        return processed;
+    }
+
+    /** Schedules work of the application, run on the simulation's thread once the virtual clock reaches it
+     *
+     * @param task task to be run
+     * @param delayMillis virtual delay in msec
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        at(now + TimeUnit.MILLISECONDS.toNanos(delayMillis), task);
+    }
+
+    private void at(long time, Runnable task) {
+        events.add(new Event(time, order++, task));
+    }
+
+    /** Runs events and expiring timers in time order until the virtual clock has advanced by the given duration,
+     * and leaves the clock there
+     *
+     * @param durationMillis virtual time to simulate in msec
+     */
+    public void run(long durationMillis) {
+        long end = now + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        while (true) {
+            long wait = timer.expire(); // Runs the timers that are due, and says when the next one is
+            long timerAt = (wait == 0) ? Long.MAX_VALUE : now + TimeUnit.MILLISECONDS.toNanos(wait);
+            Event e = events.peek();
+            long next = (e != null) ? Math.min(e.time, timerAt) : timerAt;
+
+            if (next > end) {
+                break;
+            }
+
+            now = next;
+
+            if (e != null && e.time == next) {
+                events.poll();
+                processed++;
+
+                try {
+                    e.task.run();
+                } catch (RuntimeException ex) {
+                    System.out.println("Simulator run(): " + ex);
+                }
+            }
+        }
+
+        now = end;
+    }
+
+    /** Creates the endpoint a new connection sends and receives through
+     *
+     * @param port port number of the endpoint, which peers address it by
+     * @return the endpoint
+     */
+    UdpTransport bind(int port) {
+        Endpoint e = new Endpoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        endpoints.put(port, e);
+
+        return e;
+    }
+
+    /** Lets a connection's receiver thread handle the datagrams arriving at its endpoint, on the simulation's
+     * thread
+     *
+     * @param t endpoint of the connection
+     * @param r reads, decodes and routes the endpoint's datagrams
+     */
+    void register(UdpTransport t, ReceiverThread r) {
+        r.group = group;
+        ((Endpoint) t).reader = r;
+    }
+
+    /** Sends the acks of the last batch, and schedules another flush for the earliest delayed ack still pending
+     *
+     */
+    private void flushAcks() {
+        long wait = group.flushAcks();
+
+        if (wait > 0) {
+            long due = now + TimeUnit.MILLISECONDS.toNanos(wait);
+
+            if (ackFlushAt == 0 || due < ackFlushAt) {
+                ackFlushAt = due;
+                at(due, () -> {
+                    ackFlushAt = 0;
+                    flushAcks();
+                });
+            }
+        }
+    }
+
+    /** Transfers data from one connection to another for a while, keeping the sender's queue full, and prints
+     * the goodput
+     *
+     */
+    private static void transfer(long seed, int protocol, int window, double lossRate, int seconds) {
+        Simulator sim = new Simulator(seed);
+        RDT.setSimulator(sim);
+        RDT.protocol = protocol;
+        RDT.setLossRate(lossRate);
+
+        RDT sender = new RDT("localhost", 2, 1, window, window);
+        RDT receiver = new RDT("localhost", 1, 2, window, window);
+        long[] delivered = {0};
+        byte[] message = new byte[SWEEP_MESSAGE];
+
+        receiver.setDeliveryHandler((data, off, len) -> delivered[0] += len);
+
+        Runnable next = new Runnable() {
+            @Override
+            public void run() {
+                sender.sendAsync(message, 0, message.length).thenRun(this);
+            }
+        };
+
+        sim.schedule(next, 0);
+        sim.schedule(next, 0); // A second message, so the queue never runs dry while the first completes
+
+        long start = System.nanoTime();
+        sim.run(TimeUnit.SECONDS.toMillis(seconds));
+        long wall = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        System.out.printf("%-4s %7d %7.2f %12.1f %12d %10d%n", (protocol == RDT.GBN) ? "GBN" : "SR", window,
+                lossRate, delivered[0] / 1024.0 / seconds, sim.events(), wall);
+
+        sender.close();
+        receiver.close();
+        RDT.setSimulator(null);
+    }
+
+    /**
+     * @param args seed of the random choices, and the virtual seconds simulated per setting
+     */
+    public static void main(String[] args) {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : 1;
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 600;
+
+        RDT.setLogLevel(RDT.LOG_OFF);
+        RDT.setNetworkDelay(0);
+        RDT.setMSS(SWEEP_MSS);
+
+        System.out.printf("%-4s %7s %7s %12s %12s %10s%n", "", "Window", "Loss", "KB/s", "Events", "Wall ms");
+
+        for (int protocol : new int[] {RDT.GBN, RDT.SR}) {
+            for (double lossRate : SWEEP_LOSS_RATES) {
+                for (int window : SWEEP_WINDOWS) {
+                    transfer(seed, protocol, window, lossRate, seconds);
+                }
+            }
+        }
+
+        System.exit(0);
+    }
+
+    /** A simulated UDP socket. Datagrams are encoded when sent, and arrive at the peer's endpoint after the
+     * link's serialization and propagation delays plus any emulated network delay
+     *
+     */
+    private class Endpoint extends UdpTransport {
+        final InetSocketAddress address;
+        ReceiverThread reader;      // Set once the connection registers
+        private ArrayDeque<Datagram> inbound = new ArrayDeque<>();
+        private boolean drainQueued = false;
+        private long linkFreeAt = 0;  // When the datagrams sent so far have been serialized onto the link
+        private long lastArrival = 0; // Arrival time of the newest datagram sent, so the link never reorders
+
+        Endpoint(InetSocketAddress address_) {
+            address = address_;
+        }
+
+        @Override
+        void send(RDTSegment seg, SocketAddress dst) {
+            sendDelayed(seg, dst, 0);
+        }
+
+        @Override
+        void sendDelayed(RDTSegment seg, SocketAddress dst, long delayNanos) {
+            Endpoint peer = endpoints.get(((InetSocketAddress) dst).getPort());
+
+            int size = RDTSegment.HDR_SIZE + seg.length;
+
+            if (peer == null || size > pathMtu) {
+                return; // Nothing bound there, or too large for the path, so the datagram is lost like on a real network
+            }
+
+            Datagram d = free.poll();
+
+            if (d == null) {
+                d = new Datagram();
+            }
+
+            if (d.data == null || d.data.capacity() < size) {
+                d.data = ByteBuffer.allocate(Math.max(size, Datagram.MIN_CAPACITY));
+            }
+
+            d.data.clear();
+            d.data.limit(Utility.makePayload(seg, d.data));
+            d.src = address;
+
+            long departure = Math.max(now, linkFreeAt);
+
+            if (bytesPerSecond > 0) {
+                departure += TimeUnit.SECONDS.toNanos(size) / bytesPerSecond;
+            }
+
+            linkFreeAt = departure;
+            lastArrival = Math.max(departure + latencyNanos + delayNanos, lastArrival);
+
+            Datagram arriving = d;
+            at(lastArrival, () -> peer.arrive(arriving));
+        }
+
+        /** Queues an arriving datagram, and has the endpoint read once everything arriving at the same time is in
+         *
+         */
+        private void arrive(Datagram d) {
+            inbound.add(d);
+
+            if (!drainQueued) {
+                drainQueued = true;
+                at(now, this::drain);
+            }
+        }
+
+        private void drain() {
+            drainQueued = false;
+
+            if (reader == null) {
+                free.addAll(inbound);
+                inbound.clear();
+                return;
+            }
+
+            try {
+                reader.drain();
+            } catch (IOException e) {
+                System.out.println("Simulator drain(): " + e);
+            }
+
+            flushAcks();
+        }
+
+        @Override
+        SocketAddress receive(ByteBuffer buffer) {
+            Datagram d = inbound.poll();
+
+            if (d == null) {
+                return null;
+            }
+
+            buffer.clear();
+            buffer.put(d.data);
+            buffer.flip();
+            free.push(d);
+
+            return d.src;
+        }
+
+        @Override
+        void close() {
+            endpoints.remove(address.getPort());
+        }
+    }
+
+    /** An encoded datagram on its way between endpoints
+     *
+     */
+    private static class Datagram {
+        static final int MIN_CAPACITY = 2048;
+
+        ByteBuffer data;
+        SocketAddress src;
+    }
+
+    /** Work scheduled at a point in virtual time
+     *
+     */
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long order;
+        final Runnable task;
+
+        Event(long time_, long order_, Runnable task_) {
+            time = time_;
+            order = order_;
+            task = task_;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int cmp = Long.compare(time, other.time);
+
+            return (cmp != 0) ? cmp : Long.compare(order, other.order);
+        }
+    }
+} // end Simulator class
@@ -60,7 +60,7 @@ public class TestClient {
        // byte[] data = new byte[messageSize];
 
        // RDT rdt = new RDT(hostname, dst_port, local_port, bufsize, bufsize);
-       // RDT.setMSS(10);
+       // rdt.setMaxSegmentSize(10);
        // RDT.setLossRate(0);
 
        // int index = 1;
@@ -132,7 +132,7 @@ public class TestClient {
        // byte[] data = new byte[messageSize];
 
        // RDT rdt = new RDT(hostname, dst_port, local_port, bufsize, bufsize);
-       // RDT.setMSS(10);
+       // rdt.setMaxSegmentSize(10);
        // RDT.setLossRate(0);
        // RDT.protocol = SR;
 
@@ -156,7 +156,7 @@ public class TestClient {
        byte[] data = new byte[messageSize];
 
        RDT rdt = new RDT(hostname, dst_port, local_port, bufsize, bufsize);
-       RDT.setMSS(10);
+       rdt.setMaxSegmentSize(10);
        RDT.setLossRate(0.4);
        RDT.protocol = SR;
 
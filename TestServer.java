@@ -46,7 +46,7 @@ public class TestServer {
          -------------------------------------*/
        // int bufsize = 3;
        // RDT rdt = new RDT(hostname, dst_port, local_port, bufsize, bufsize);
-       // RDT.setMSS(10);
+       // rdt.setMaxSegmentSize(10);
        // RDT.setLossRate(0);
 
 
@@ -58,7 +58,7 @@ public class TestServer {
          -------------------------------------*/
        // int bufsize = 10;
        // RDT rdt = new RDT(hostname, dst_port, local_port, bufsize, bufsize);
-       // RDT.setMSS(10);
+       // rdt.setMaxSegmentSize(10);
        // RDT.setLossRate(0);
 
 
@@ -70,7 +70,7 @@ public class TestServer {
          -------------------------------------*/
        // int bufsize = 1;
        // RDT rdt = new RDT(hostname, dst_port, local_port, bufsize, bufsize);
-       // RDT.setMSS(10);
+       // rdt.setMaxSegmentSize(10);
        // RDT.setLossRate(0.8);
 
 
@@ -82,7 +82,7 @@ public class TestServer {
          -------------------------------------*/
        // int bufsize = 10;
        // RDT rdt = new RDT(hostname, dst_port, local_port, bufsize, bufsize);
-       // RDT.setMSS(10);
+       // rdt.setMaxSegmentSize(10);
        // RDT.setLossRate(0);
        // RDT.protocol = SR;
 
@@ -94,8 +94,8 @@ public class TestServer {
 
          -------------------------------------*/
        int bufsize = 6;
-       RDT rdt = new RDT(hostname, dst_port, local_port, bufsize, bufsize);
        RDT.setMSS(45);
+       RDT rdt = new RDT(hostname, dst_port, local_port, bufsize, bufsize);
        RDT.setLossRate(0.4);
        RDT.protocol = SR;
 
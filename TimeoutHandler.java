@@ -2,41 +2,63 @@
 
 package rdt;
 
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.util.TimerTask;
-
-import static rdt.RDT.ANSI_CYAN;
-import static rdt.RDT.ANSI_RESET;
+import java.net.InetSocketAddress;
 
 /** Handles retransmission of timed-out segments in Selective Repeat
  *
  * @author Chris Harris
  */
-class TimeoutHandler extends TimerTask {
+class TimeoutHandler implements Runnable {
 	RDTBuffer sndBuf;
-	RDTSegment seg; 
-	DatagramSocket socket;
-	InetAddress dst_ip;
-	int dst_port;
+	int seqNum;
+	UdpTransport transport;
+	InetSocketAddress dst;
 	
-	TimeoutHandler (RDTBuffer sndBuf_, RDTSegment s, DatagramSocket sock, 
-			InetAddress ip_addr, int p) {
+	TimeoutHandler (RDTBuffer sndBuf_, RDTSegment s, UdpTransport t, InetSocketAddress dst_) {
 		sndBuf = sndBuf_;
-		seg = s;
-		socket = sock;
-		dst_ip = ip_addr;
-		dst_port = p;
+		seqNum = s.seqNum;
+		transport = t;
+		dst = dst_;
 	}
 
-    /** Prints notification to stdout and calls udp_send() with the given segment
+    /** Logs the timeout, reports the timeout to the congestion controller and calls udp_send() with the given
+     * segment. The segment's own timer is then backed off, doubling its period up to the maximum RTO. The segment
+     * is looked up in the send buffer under its lock, so a timer that fires just as an ack arrives never resends a
+     * segment that has been recycled
      *
      */
 	public void run() {
-		System.out.println(System.currentTimeMillis()+ ":" + ANSI_CYAN + " TIMEOUT FOR SEGMENT: " + ANSI_RESET + "SegNum=" + seg.seqNum);
-		System.out.flush();
+        sndBuf.lock.lock();
+
+        try {
+            RDTSegment seg = sndBuf.slot(seqNum);
+
+            if (seqNum < sndBuf.base || seqNum >= sndBuf.nextSeqNum || seg == null || seg.seqNum != seqNum || seg.acked) {
+                return;
+            }
+
+            EventLog.info(EventSink.TIMEOUT, seg.seqNum, 0, 0, 0);
+
+            seg.retransmitted = true;
+            sndBuf.cc.onTimeout();
+            sndBuf.metrics.timeouts.increment();
 
-        Utility.udp_send(seg, socket, dst_ip, dst_port, true);
+            MtuProber p = sndBuf.prober;
+
+            if (p != null) {
+                p.timedOut();
+            }
+            sndBuf.metrics.resent(Utility.udp_send(seg, transport, dst, true, sndBuf.pacer.delay(seg)));
+
+            // The handle is only assigned once schedule() returns, which a short RTO or a wheel driven by another
+            // thread can beat. The backoff is then skipped for this one firing
+            TimingWheel.Timeout t = seg.timer;
+
+            if (t != null) {
+                t.period = Math.min(RTOEstimator.MAX_RTO, t.period * 2);
+            }
+        } finally {
+            sndBuf.lock.unlock();
+        }
 	}
 } // end TimeoutHandler class
-
@@ -0,0 +1,333 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/** Hashed timing wheel shared by every RDT connection. Timeouts are kept in doubly linked buckets indexed
+ * by their expiry tick, so scheduling and cancelling are O(1), and a single worker thread drives all of the
+ * retransmission timers instead of one java.util.Timer thread per segment. A wheel owned by an EventLoop has no
+ * worker: the loop calls expire() between selects instead, and is woken whenever a timeout is scheduled ahead of
+ * the deadline it is waiting for. A Simulator drives its wheel the same way, from its virtual clock
+ *
+ * @author Chris Harris
+ */
+class TimingWheel {
+    static final int DEFAULT_TICK = 1;          // Tick duration in msec
+    static final int DEFAULT_WHEEL_SIZE = 512;  // Number of buckets, must be a power of two
+
+    private final long tickNanos;
+    private final Timeout[] buckets; // Head of each bucket's list, guarded by this
+    private final int mask;
+    private final Clock clock;
+    private final long startTime;
+    private long tick = 0;           // Ticks processed so far, guarded by this
+    private int pending = 0;         // Timeouts linked into the buckets, guarded by this
+    private final Runnable wakeup;   // Wakes the event loop driving the wheel, or null if it has its own worker
+    private long sleepUntil = Long.MAX_VALUE; // Tick the event loop will next call expire() at, guarded by this
+    private final ArrayList<Timeout> expired = new ArrayList<>(); // Reused by the thread driving the wheel
+
+    TimingWheel() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     *
+     * @param tickMillis duration of one tick in msec
+     * @param wheelSize number of buckets in the wheel, rounded up to a power of two
+     */
+    TimingWheel(int tickMillis, int wheelSize) {
+        this(tickMillis, wheelSize, RDT.clock, null);
+
+        Thread worker = new Thread(this::run, "rdt-timing-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Creates a wheel without a worker thread, driven by an event loop calling expire()
+     *
+     * @param wakeup called when a timeout is scheduled ahead of the loop's next call to expire(), from any thread
+     */
+    TimingWheel(Runnable wakeup) {
+        this(RDT.clock, wakeup);
+    }
+
+    /** Creates a wheel without a worker thread that reads the given clock, driven by calling expire()
+     *
+     * @param clock clock the deadlines are measured against
+     * @param wakeup called when a timeout is scheduled ahead of the next call to expire(), from any thread
+     */
+    TimingWheel(Clock clock, Runnable wakeup) {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE, clock, wakeup);
+    }
+
+    private TimingWheel(int tickMillis, int wheelSize, Clock clock_, Runnable wakeup_) {
+        int size = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        buckets = new Timeout[size];
+        mask = size - 1;
+        clock = clock_;
+        startTime = clock.nanoTime();
+        wakeup = wakeup_;
+    }
+
+    /** Schedules a one-shot task
+     *
+     * @param task task to be run on the wheel's worker thread
+     * @param delay delay in msec before the task runs
+     * @return handle used to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay) {
+        return schedule(task, delay, 0);
+    }
+
+    /** Schedules a task that first runs after delay, then repeatedly every period until cancelled. Like
+     * TimerTask, a task that is already running when cancelled runs to completion
+     *
+     * @param task task to be run on the wheel's worker thread
+     * @param delay delay in msec before the first run
+     * @param period delay in msec between runs, or 0 for a one-shot task
+     * @return handle used to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay, long period) {
+        Timeout timeout = new Timeout(task, period);
+
+        synchronized (this) {
+            insert(timeout, delay);
+        }
+
+        return timeout;
+    }
+
+    /** Links a timeout into the bucket it expires in. Caller must hold the lock
+     *
+     */
+    private void insert(Timeout timeout, long delay) {
+        long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delay) + tickNanos - 1) / tickNanos);
+        long elapsed = (clock.nanoTime() - startTime) / tickNanos;
+
+        // Never place a timeout in a bucket the worker has already passed
+        timeout.deadline = Math.max(elapsed + ticks, tick + 1);
+
+        int idx = (int) (timeout.deadline & mask);
+        timeout.next = buckets[idx];
+        timeout.prev = null;
+
+        if (buckets[idx] != null) {
+            buckets[idx].prev = timeout;
+        }
+
+        buckets[idx] = timeout;
+        timeout.linked = true;
+        pending++;
+
+        if (wakeup != null && timeout.deadline < sleepUntil) {
+            sleepUntil = timeout.deadline;
+            wakeup.run();
+        }
+    }
+
+    /** Unlinks a timeout from its bucket. Caller must hold the lock
+     *
+     */
+    private void remove(Timeout timeout) {
+        int idx = (int) (timeout.deadline & mask);
+
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        }
+        else {
+            buckets[idx] = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+
+        timeout.next = timeout.prev = null;
+        timeout.linked = false;
+        pending--;
+    }
+
+    /** Unlinks every timeout in a bucket whose deadline has been reached. Caller must hold the lock
+     *
+     * @param idx index of the bucket
+     * @param limit last tick that has been reached
+     * @param expired list the unlinked timeouts are added to
+     */
+    private void collect(int idx, long limit, ArrayList<Timeout> expired) {
+        Timeout timeout = buckets[idx];
+
+        while (timeout != null) {
+            Timeout following = timeout.next;
+
+            if (timeout.deadline <= limit) {
+                remove(timeout);
+                expired.add(timeout);
+            }
+
+            timeout = following;
+        }
+    }
+
+    /** Runs expired tasks, and puts periodic ones back into the wheel
+     *
+     */
+    private void runExpired(ArrayList<Timeout> expired) {
+        for (Timeout timeout : expired) {
+            if (timeout.cancelled) {
+                continue;
+            }
+
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                System.out.println("TimingWheel task: " + e);
+            }
+
+            if (timeout.period > 0) {
+                synchronized (this) {
+                    if (!timeout.cancelled) {
+                        insert(timeout, timeout.period);
+                    }
+                }
+            }
+        }
+
+        expired.clear();
+    }
+
+    /** Runs every task whose deadline has passed, on behalf of the event loop driving a wheel without a worker,
+     * and works out how long the loop may wait before calling again
+     *
+     * @return msec until the earliest pending deadline, or 0 if nothing is scheduled
+     */
+    long expire() {
+        long now = (clock.nanoTime() - startTime) / tickNanos;
+
+        synchronized (this) {
+            sleepUntil = now; // Awake, so tasks scheduled from here on need not wake the loop
+
+            if (pending == 0 || now - tick >= buckets.length) {
+                // Every bucket is due (or empty), so sweep the whole wheel once instead of tick by tick
+                for (int i = 0; pending > 0 && i < buckets.length; i++) {
+                    collect(i, now, expired);
+                }
+
+                tick = Math.max(tick, now);
+            }
+
+            while (tick < now) {
+                tick++;
+                collect((int) (tick & mask), tick, expired);
+            }
+        }
+
+        runExpired(expired);
+
+        synchronized (this) {
+            long next = nextDeadline();
+            sleepUntil = next;
+
+            if (next == Long.MAX_VALUE) {
+                return 0;
+            }
+
+            long wait = startTime + next * tickNanos - clock.nanoTime();
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + tickNanos - 1));
+        }
+    }
+
+    /** Finds the earliest tick a pending timeout expires at. Buckets are searched in order from the current tick,
+     * so this usually stops at the first non-empty one. Caller must hold the lock
+     *
+     * @return the tick, or Long.MAX_VALUE if nothing is pending
+     */
+    private long nextDeadline() {
+        if (pending == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        long earliest = Long.MAX_VALUE;
+
+        for (long t = tick + 1; t <= tick + buckets.length; t++) {
+            for (Timeout timeout = buckets[(int) (t & mask)]; timeout != null; timeout = timeout.next) {
+                if (timeout.deadline == t) {
+                    return t;
+                }
+
+                earliest = Math.min(earliest, timeout.deadline); // A later lap, unless nothing nearer turns up
+            }
+        }
+
+        return earliest;
+    }
+
+    /** Advances the wheel one tick at a time, running every task whose deadline has been reached
+     *
+     */
+    private void run() {
+        while (true) {
+            long next;
+
+            synchronized (this) {
+                next = tick + 1;
+            }
+
+            long wait = startTime + next * tickNanos - clock.nanoTime();
+
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+
+            synchronized (this) {
+                tick = next;
+                collect((int) (tick & mask), tick, expired);
+            }
+
+            runExpired(expired);
+        }
+    }
+
+    /** Handle for a scheduled task
+     *
+     */
+    class Timeout {
+        private final Runnable task;
+        long period;              // Delay in msec between runs, may be changed by the task while it runs
+        private long deadline;    // Tick at which the task expires
+        private Timeout prev, next;
+        private boolean linked;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long period) {
+            this.task = task;
+            this.period = period;
+        }
+
+        /** Cancels the task. Safe to call more than once, and from any thread
+         *
+         */
+        void cancel() {
+            synchronized (TimingWheel.this) {
+                cancelled = true;
+
+                if (linked) {
+                    remove(this);
+                }
+            }
+        }
+
+        /** Checks whether or not the task has been cancelled
+         *
+         * @return a boolean value
+         */
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+} // end TimingWheel class
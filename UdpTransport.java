@@ -0,0 +1,138 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/** Wraps the DatagramChannel used by an RDT endpoint. Segments are encoded into a single reusable direct
+ * buffer, so sending a datagram does not allocate a new payload array or DatagramPacket. The channel is
+ * non-blocking: the receiving thread waits in await(), then drains every queued datagram with receive(). A
+ * Simulator subclasses it to carry datagrams between its endpoints in memory instead
+ *
+ * @author Chris Harris
+ */
+class UdpTransport {
+    static final int MAX_DATAGRAM_SIZE = 65507; // Largest UDP payload over IPv4
+
+    private static final DelayLine network = new DelayLine(); // Emulated network shared by every transport
+
+    private DatagramChannel channel;
+    private Selector selector; // Only used by the receiving thread
+    private ByteBuffer sendBuffer; // Shared by every sending thread, guarded by this
+
+    long lastDeparture; // Departure time of the newest packet queued on the DelayLine, guarded by the DelayLine
+
+    /**
+     *
+     * @param local_port port number the channel is bound to
+     * @throws IOException if the channel cannot be opened or bound
+     */
+    UdpTransport(int local_port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(local_port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    }
+
+    /** Creates a transport without a channel, for a subclass that overrides the I/O methods
+     *
+     */
+    UdpTransport() {}
+
+    /** Encodes a segment into the send buffer and writes it to the channel as a single datagram
+     *
+     * @param seg RDT segment to be sent over the network
+     * @param dst address of the recipient
+     * @throws IOException if the datagram could not be sent
+     */
+    synchronized void send(RDTSegment seg, SocketAddress dst) throws IOException {
+        sendBuffer.clear();
+        sendBuffer.limit(Utility.makePayload(seg, sendBuffer));
+        channel.send(sendBuffer, dst);
+    }
+
+    /** Queues a segment on the emulated network, which encodes it now and writes it to the channel once the
+     * delay has passed, keeping the order in which segments were sent through this transport
+     *
+     * @param seg RDT segment to be sent over the network
+     * @param dst address of the recipient
+     * @param delayNanos emulated network delay in nanoseconds
+     */
+    void sendDelayed(RDTSegment seg, SocketAddress dst, long delayNanos) {
+        network.send(seg, this, dst, delayNanos);
+    }
+
+    /** Writes an already encoded datagram to the channel
+     *
+     * @param datagram buffer holding the datagram between its position and limit
+     * @param dst address of the recipient
+     * @throws IOException if the datagram could not be sent
+     */
+    void send(ByteBuffer datagram, SocketAddress dst) throws IOException {
+        channel.send(datagram, dst);
+    }
+
+    /** Waits until a datagram is queued on the channel, or the timeout runs out
+     *
+     * @param timeout maximum wait in msec, or 0 to wait indefinitely
+     * @throws IOException if the selector fails
+     */
+    void await(long timeout) throws IOException {
+        selector.select(timeout);
+        selector.selectedKeys().clear();
+    }
+
+    /** Makes a thread blocked in await() return at once, or the next call to await() if none is blocked
+     *
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /** Registers the channel with an event loop's selector, in addition to this transport's own
+     *
+     * @param sel selector of the event loop
+     * @param attachment object handling the channel's datagrams
+     */
+    void register(Selector sel, Object attachment) {
+        try {
+            channel.register(sel, SelectionKey.OP_READ, attachment);
+        } catch (IOException e) {
+            System.out.println("UdpTransport register(): " + e);
+        }
+    }
+
+    /** Takes the next queued datagram, if any, leaving it between position and limit of the given buffer
+     *
+     * @param buffer buffer the datagram is received into, normally owned by the receiving thread
+     * @return address of the sender, or null if no datagram was queued
+     * @throws IOException if the channel could not be read
+     */
+    SocketAddress receive(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        SocketAddress src = channel.receive(buffer);
+        buffer.flip();
+
+        return src;
+    }
+
+    /** Closes the underlying channel
+     *
+     */
+    void close() {
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("UdpTransport close(): " + e);
+        }
+    }
+} // end UdpTransport class
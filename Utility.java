@@ -2,7 +2,11 @@
 
 package rdt;
 
+import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
 
 import static rdt.RDT.*;
 
@@ -12,75 +16,77 @@ import static rdt.RDT.*;
  */
 public class Utility {
 
-	private static final int MAX_NETWORK_DELAY = 200; // msec
+	private static final ThreadLocal<CRC32C> crc = ThreadLocal.withInitial(CRC32C::new); // Reused by each encoding thread
+	private static final byte[] ZERO_CHECKSUM = new byte[4]; // Stands in for the checksum field while it is computed
 
     /**
      *
      * @param seg RDT segment to be sent over the network
-     * @param socket datagram socket used for transmission
-     * @param ip IP address of the recipient
-     * @param port port number of the recipient
+     * @param transport transport used for transmission
+     * @param dst address of the recipient
      * @param resend boolean value representing whether or not this is the first transmission of this segment
+     * @return false if the emulated network dropped the segment
      */
-	public static void udp_send (RDTSegment seg, DatagramSocket socket, InetAddress ip, int port, boolean resend) {
+	static boolean udp_send (RDTSegment seg, UdpTransport transport, InetSocketAddress dst, boolean resend) {
+	    return udp_send(seg, transport, dst, resend, 0);
+	}
+
+    /** Sends a segment once its pacer allows it. The pacer's wait is added to the emulated network delay, so the
+     * segment is encoded now and held back by the delay line rather than by the calling thread
+     *
+     * @param seg RDT segment to be sent over the network
+     * @param transport transport used for transmission
+     * @param dst address of the recipient
+     * @param resend boolean value representing whether or not this is the first transmission of this segment
+     * @param paced nanoseconds the pacer holds the segment back, from Pacer.delay()
+     * @return false if the emulated network dropped the segment
+     */
+	static boolean udp_send (RDTSegment seg, UdpTransport transport, InetSocketAddress dst, boolean resend,
+	                         long paced) {
         // Simulate network loss
 		double d = RDT.random.nextDouble();
 		if ( d < RDT.lossRate) {
             if (seg.containsData()) {
-                System.out.println(System.currentTimeMillis() + ":" + ANSI_RED + " LOST SEGMENT:" + ANSI_RESET + " SeqNum=" +
-                        seg.seqNum);
+                EventLog.info(EventSink.LOST_SEGMENT, seg.seqNum, 0, 0, 0);
             }
             else {
-                System.out.println(System.currentTimeMillis() + ":" + ANSI_RED + " LOST ACK:" + ANSI_RESET + " AckNum=" +
-                        seg.ackNum);
+                EventLog.info(EventSink.LOST_ACK, seg.seqNum, seg.ackNum, 0, 0);
             }
 
-			System.out.flush();
-	        return;
+	        return false;
 	    }
 
-		// Prepare UDP payload
-		int payloadSize = seg.length + RDTSegment.HDR_SIZE;
-		byte[] payload = new byte[payloadSize];
-		makePayload(seg, payload);
-
 		// Send over UDP
-		// Simulate random network delay
-		int delay = RDT.random.nextInt(MAX_NETWORK_DELAY);
-		try {
-			Thread.sleep(delay);
-			socket.send(new DatagramPacket(payload, payloadSize, ip, port));
-		} catch (Exception e) {
-			System.out.println("udp_send: " + e);
-		}
-
-		// Print information about the transmission to stdout
-		String segData = dataToString(seg.getData());
-		String status;
+		// Simulate random network delay: the delay line holds the encoded packet back, so the caller never sleeps
+		int delay = 0;
 
-		if (resend) {
-		    status = "RESEND: ";
-        }
-        else {
-		    status = "SEND: ";
-        }
+		if (RDT.networkDelay > 0 || paced > 0) {
+		    delay = (RDT.networkDelay > 0) ? RDT.random.nextInt(RDT.networkDelay) : 0;
+		    transport.sendDelayed(seg, dst, TimeUnit.MILLISECONDS.toNanos(delay) + paced);
+		}
+		else {
+		    try {
+		        transport.send(seg, dst);
+		    } catch (IOException e) {
+		        System.out.println("udp_send: " + e);
+		    }
+		}
 
+		// Record the transmission in the event log
 		if (seg.containsAck()) {
-            System.out.println(System.currentTimeMillis() + ": " + ANSI_GREEN + status + ANSI_RESET + "SeqNum="
-                    + seg.seqNum + ANSI_GREEN + " AckNum=" + seg.ackNum + ANSI_RESET + " Delay=" + delay);
+            EventLog.debug(EventSink.SEND_ACK, seg.seqNum, seg.ackNum, delay, 0);
         }
         else if (seg.containsFin()) {
-            System.out.println(System.currentTimeMillis() + ": " + ANSI_PURPLE + "SEND FIN:" + ANSI_RESET + " Delay=" + delay);
+            EventLog.debug(EventSink.SEND_FIN, seg.seqNum, seg.ackNum, delay, 0);
+        }
+        else if (seg.containsMtuProbe()) {
+            EventLog.debug(EventSink.MTU_PROBE, RDTSegment.HDR_SIZE + seg.length, seg.seqNum, delay, 0);
         }
         else {
-            System.out.println(System.currentTimeMillis() + ": " + ANSI_GREEN + status + ANSI_RESET + "Segment <" + seg + "> " + ANSI_GREEN + "SeqNum="
-                    + seg.seqNum + ANSI_RESET + " AckNum=" + seg.ackNum + " Delay=" + delay + " Checksum=" + seg.checksum + " Data=" + segData + "");
+            EventLog.debug(resend ? EventSink.RESEND : EventSink.SEND, seg.seqNum, seg.ackNum, delay, seg.checksum);
         }
 
-        System.out.flush();
-		// end print
-
-		return;
+		return true;
 	}
 
     /** Converts int to byte and stores value in the segments data array
@@ -153,26 +159,91 @@ public class Utility {
 		return intValue;
 	}
 
-    /** Converts this seg to a series of bytes
+    /** Converts this seg to a series of bytes in a (typically direct) buffer. Only absolute puts are used, so
+     * the position of the buffer is left untouched. With CRC32C checksums, the CRC is computed over the encoded
+     * bytes and stored both in the datagram and in seg.checksum
      *
      * @param seg RDT segment to be prepared for transmission
-     * @param payload array of data to be added to the segments header and body
+     * @param payload buffer to hold the segment header and body, at least HDR_SIZE + seg.length bytes long
+     * @return number of bytes written to the buffer
      */
-    public static void makePayload(RDTSegment seg, byte[] payload) {
+    public static int makePayload(RDTSegment seg, ByteBuffer payload) {
+        boolean crc32c = (RDT.checksumType == CHECKSUM_CRC32C);
+
         // Add header
-        intToByte(seg.seqNum, payload, seg.SEQ_NUM_OFFSET);
-        intToByte(seg.ackNum, payload, seg.ACK_NUM_OFFSET);
-        intToByte(seg.flags, payload, seg.FLAGS_OFFSET);
-        intToByte(seg.checksum, payload, seg.CHECKSUM_OFFSET);
-        intToByte(seg.rcvWin, payload, seg.RCV_WIN_OFFSET);
-        intToByte(seg.length, payload, seg.LENGTH_OFFSET);
+        payload.putInt(RDTSegment.SEQ_NUM_OFFSET, seg.seqNum);
+        payload.putInt(RDTSegment.ACK_NUM_OFFSET, seg.ackNum);
+        payload.putInt(RDTSegment.FLAGS_OFFSET, crc32c ? seg.flags | RDTSegment.FLAGS_CRC32C : seg.flags);
+        payload.putInt(RDTSegment.CHECKSUM_OFFSET, seg.checksum);
+        payload.putInt(RDTSegment.RCV_WIN_OFFSET, seg.rcvWin);
+        payload.putInt(RDTSegment.LENGTH_OFFSET, seg.length);
+        payload.putInt(RDTSegment.CONN_ID_OFFSET, seg.connId);
+
+        // Add data, straight from the application's buffer for a zero-copy send
+        ByteBuffer body = seg.getBody();
+
+        if (body != null) {
+            payload.put(RDTSegment.HDR_SIZE, body, body.position(), seg.length);
+        }
+        else {
+            payload.put(RDTSegment.HDR_SIZE, seg.getData(), 0, seg.length);
+        }
 
-        // Add data
-        byte segData[] = seg.getData();
+        int size = RDTSegment.HDR_SIZE + seg.length;
+
+        if (crc32c) {
+            seg.checksum = crc32c(payload, size);
+            payload.putInt(RDTSegment.CHECKSUM_OFFSET, seg.checksum);
+        }
+
+        return size;
+    }
+
+    /** Computes the CRC32C of an encoded datagram, counting the checksum field as zero, so that the same call
+     * serves the sender filling the field in and the receiver checking it. The CRC runs over the buffer in bulk
+     * (an intrinsic on most JVMs), and the buffer's position and limit are restored afterwards
+     *
+     * @param datagram buffer holding the datagram from index 0
+     * @param size length of the datagram, at least HDR_SIZE
+     * @return the CRC, truncated to an int
+     */
+    static int crc32c(ByteBuffer datagram, int size) {
+        CRC32C c = crc.get();
+        int position = datagram.position();
+        int limit = datagram.limit();
+
+        c.reset();
+
+        datagram.limit(RDTSegment.CHECKSUM_OFFSET).position(0);
+        c.update(datagram);
+        c.update(ZERO_CHECKSUM, 0, ZERO_CHECKSUM.length);
+
+        datagram.limit(size).position(RDTSegment.CHECKSUM_OFFSET + 4);
+        c.update(datagram);
+
+        datagram.limit(limit).position(position);
+
+        return (int) c.getValue();
+    }
+
+    /** Converts the start of a segment's body to a string, for printing to stdout
+     *
+     * @param seg segment whose body is printed
+     * @return a string representation of the body
+     */
+    static String dataToString(RDTSegment seg) {
+        StringBuilder str = new StringBuilder("[");
 
         for (int i = 0; i < seg.length; i++) {
-            payload[i + seg.HDR_SIZE] = segData[i];
+            str.append(seg.dataAt(i));
+
+            if (i > 10) {
+                str.append("...");
+                break;
+            }
         }
+
+        return str.append(']').toString();
     }
 
     /** Converts a segments data array to a string, for printing to stdout
@@ -181,17 +252,17 @@ public class Utility {
      * @return a string representation of the array
      */
     public static String dataToString(byte[] data) {
-	    String str = "[";
+        StringBuilder str = new StringBuilder("[");
+
         for (int i = 0; i < data.length; i++) {
-            str += data[i];
+            str.append(data[i]);
 
             if (i > 10) {
-                str += "...";
+                str.append("...");
                 break;
             }
         }
-        str += "]";
 
-        return str;
+        return str.append(']').toString();
     }
 }
@@ -0,0 +1,90 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** JMH benchmark of RDTBuffer.putNext() on the benchmark thread against getNext() on a consumer thread, through
+ * rings of several sizes. Each invocation pushes a batch of segments and waits for the consumer to take them all,
+ * so that neither side is ever left blocked on the other when an iteration ends
+ *
+ * @author Chris Harris
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BufferBenchmark {
+    static final int BATCH = 4096; // Segments per invocation
+
+    @Param({"4", "16", "64"})
+    public int size;
+
+    @Param({"1", "2"}) // RDT.WAIT_BLOCK, RDT.WAIT_SPIN
+    public int waitStrategy;
+
+    private RDTBuffer buf;
+    private RDTSegment[] segs;
+    private final RDTSegment stop = new RDTSegment(); // Tells the consumer to exit
+    private Thread consumer;
+    private volatile long taken; // Segments taken by the consumer so far
+    private long put;            // Segments put so far
+
+    @Setup(Level.Trial)
+    public void setup() {
+        RDT.waitStrategy = waitStrategy;
+        buf = new RDTBuffer(size);
+        segs = new RDTSegment[size * 2];
+
+        for (int i = 0; i < segs.length; i++) {
+            segs[i] = new RDTSegment();
+        }
+
+        consumer = new Thread(() -> {
+            long n = 0;
+
+            while (buf.getNext() != stop) {
+                taken = ++n;
+            }
+        }, "rdt-buffer-consumer");
+
+        consumer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        buf.putNext(stop);
+        consumer.join();
+        RDT.waitStrategy = RDT.WAIT_BLOCK;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putNextGetNext() {
+        for (int i = 0; i < BATCH; i++) {
+            RDTSegment seg = segs[(int) (put++ % segs.length)];
+            buf.putNext(seg);
+        }
+
+        while (taken != put) {
+            Thread.onSpinWait();
+        }
+    }
+} // end BufferBenchmark class
@@ -0,0 +1,104 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** JMH benchmarks of encoding and decoding one segment, and of the two checksums, across segment sizes
+ *
+ * @author Chris Harris
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"100", "1400", "8000"})
+    public int mss;
+
+    private RDTSegment seg;
+    private RDTSegment out;
+    private ByteBuffer payload; // Encoding target
+    private ByteBuffer encoded; // Encoded datagram, for decoding and the CRC32C
+    private ReceiverThread decoder;
+    private int size;
+    private int seqNum = 0;
+
+    @Setup
+    public void setup() {
+        RDT.setLogLevel(RDT.LOG_OFF);
+
+        seg = new RDTSegment();
+        byte[] body = seg.buffer(mss);
+
+        for (int i = 0; i < mss; i++) {
+            body[i] = (byte) i;
+        }
+
+        seg.length = mss;
+        seg.rcvWin = 64;
+        seg.connId = 1;
+
+        payload = ByteBuffer.allocateDirect(RDTSegment.HDR_SIZE + mss);
+        encoded = ByteBuffer.allocateDirect(RDTSegment.HDR_SIZE + mss);
+        size = Utility.makePayload(seg, encoded);
+        encoded.limit(size);
+
+        decoder = new ReceiverThread(null, (Receiver) null);
+        out = new RDTSegment();
+    }
+
+    /** Utility.makePayload() into a direct buffer, CRC32C included
+     *
+     */
+    @Benchmark
+    public int makePayload() {
+        seg.seqNum = seqNum++;
+        payload.clear();
+
+        return Utility.makePayload(seg, payload);
+    }
+
+    /** ReceiverThread.makeSegment() from a direct buffer, CRC32C check included
+     *
+     */
+    @Benchmark
+    public int makeSegment() {
+        return decoder.makeSegment(out, encoded) ? out.length : -1;
+    }
+
+    /** The 8-bit sum over the header fields and body
+     *
+     */
+    @Benchmark
+    public int computeChecksum() {
+        seg.seqNum = seqNum++;
+
+        return seg.computeChecksum();
+    }
+
+    /** The CRC32C over the whole encoded datagram
+     *
+     */
+    @Benchmark
+    public int crc32c() {
+        encoded.putInt(RDTSegment.SEQ_NUM_OFFSET, seqNum++);
+
+        return Utility.crc32c(encoded, size);
+    }
+} // end CodecBenchmark class
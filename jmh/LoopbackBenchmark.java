@@ -0,0 +1,95 @@
+/* NAME: Christopher Harris  LOGIN: charris */
+
+package rdt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** JMH benchmark of end-to-end Go Back N and Selective Repeat throughput between two connections over loopback,
+ * across segment and window sizes. Each operation sends one MiB and waits until the receiver has taken all of it,
+ * so the score in ops/s is also MiB/s. Event logging, the emulated network delay and loss are switched off. Every
+ * trial runs in its own fork, since the protocol is a static setting
+ *
+ * @author Chris Harris
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    static final int BYTES = 1 << 20; // Sent per operation
+    static final int PORT = 42100;
+
+    @Param({"1", "2"}) // RDT.GBN, RDT.SR
+    public int protocol;
+
+    @Param({"100", "1400", "8000"})
+    public int mss;
+
+    @Param({"4", "16", "64"})
+    public int window;
+
+    private RDT sender;
+    private RDT receiver;
+    private Thread reader;
+    private volatile long received; // Bytes taken by the reader so far
+    private long sent;              // Bytes sent so far
+    private final byte[] data = new byte[64 * 1024];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        RDT.setLogLevel(RDT.LOG_OFF);
+        RDT.setNetworkDelay(0);
+        RDT.setLossRate(0);
+        RDT.protocol = protocol;
+        RDT.setMSS(mss);
+
+        sender = new RDT("localhost", PORT + 1, PORT, window, window);
+        receiver = new RDT("localhost", PORT, PORT + 1, window, window);
+
+        reader = new Thread(() -> {
+            byte[] buf = new byte[64 * 1024];
+
+            while (true) {
+                received += receiver.receive(buf, 0, buf.length);
+            }
+        }, "rdt-loopback-reader");
+
+        reader.setDaemon(true); // Blocked in receive() when the trial ends
+        reader.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    public void transfer() {
+        for (int n = 0; n < BYTES; n += data.length) {
+            sender.send(data, 0, Math.min(data.length, BYTES - n));
+        }
+
+        sent += BYTES;
+
+        while (received < sent) {
+            Thread.onSpinWait();
+        }
+    }
+} // end LoopbackBenchmark class